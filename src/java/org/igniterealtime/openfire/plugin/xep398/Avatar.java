@@ -9,13 +9,9 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 import java.util.Formatter;
-import java.util.Iterator;
 
 import javax.imageio.ImageIO;
-import javax.imageio.ImageWriter;
 
-import org.jivesoftware.openfire.vcard.PhotoResizer;
-import org.jivesoftware.util.JiveGlobals;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -25,6 +21,9 @@ public class Avatar {
 
     private static final Logger Log = LoggerFactory.getLogger(Avatar.class);
 
+    private byte[] image = null;
+    private byte[] imageShrinked = null;
+    //base64 representations, encoded on first use
     private String avatar_base64 = null;
     private String avatar_base64shrinked = null;
     private String rawHash = null;
@@ -42,21 +41,17 @@ public class Avatar {
 
     public String getImageString()
     {
+        if (avatar_base64 == null && image != null) {
+            avatar_base64 = Base64.getEncoder().withoutPadding().encodeToString(image);
+        }
         return avatar_base64;
     }
 
     public byte[] getImageBytes() {
-        if (avatar_base64 == null || avatar_base64.isEmpty()) {
-            return new byte[0]; // oder return null, je nach Bedarf
-        }
-
-        try {
-            return Base64.getDecoder().decode(avatar_base64);
-        } catch (IllegalArgumentException e) {
-            // Fehler beim Dekodieren (ungültiger Base64-String)
-            e.printStackTrace(); // oder Logging verwenden
-            return new byte[0]; // oder return null
+        if (image == null) {
+            return new byte[0];
         }
+        return image;
     }
 
     public String getMainHash() {
@@ -72,109 +67,46 @@ public class Avatar {
         return test.equalsIgnoreCase(rawHash);
     }
 
-    private boolean calHashes() {
-        byte[] raw = getImageBytes();
-        byte[] shrinked = getShrinkedImage(raw);
-
-        try {
-            rawHash=getSHA1Hash(raw);
-        }
-        catch (Exception e)
-        {
-            Log.error("Error while calculating Hashes (Index 0): ",e);
-            return false;
-        }
-
-        try {
-            if (shrinked!=null)
-            {
-                shrinkedHash=getSHA1Hash(shrinked);
-            }
-        }
-        catch (Exception e)
-        {
-            Log.error("Error while calculating Hashes (Index 4): ",e);
+    /**
+     * Runs the base64 data through the ingestion pipeline and takes over the result.
+     * @param binval the base64 encoded image
+     * */
+    public void setImage(String binval) {
+        AvatarIngestion.Result ingested = AvatarIngestion.ingest(binval, getMetadata().getType());
+        if (ingested != null) {
+            apply(ingested);
         }
-
-        return true;
     }
 
-    public void setImage(String binval) {
-        try {
-            // 1. Trim, decode, re-encode mit java.util.Base64 (ohne Umbrüche)
-            byte[] decodedBytes = Base64.getDecoder().decode(binval.trim());
-            this.avatar_base64 = Base64.getEncoder().withoutPadding().encodeToString(decodedBytes);
-
-            // 2. Weiterverarbeitung
-            if (calHashes()) {
-                byte[] image = getImageBytes();
-
-                BufferedImage img = Avatar.getImageFromBytes(image);
-                if (img != null) {
-                    this.getMetadata().setHeight(img.getHeight());
-                    this.getMetadata().setWidth(img.getWidth());
-                } else {
-                    Log.error("Could not set height/width of image");
-                }
-
-                String tmp = calcShrinkedImage();
-                if (tmp != null) {
-                    this.avatar_base64shrinked = tmp;
-                }
-            }
-        } catch (IllegalArgumentException e) {
-            Log.error("Invalid Base64 input", e);
+    /**
+     * take over image, hashes and dimensions of an ingested image
+     * */
+    public void apply(AvatarIngestion.Result ingested) {
+        this.image = ingested.getImage();
+        this.avatar_base64 = null;
+        this.rawHash = ingested.getHash();
+        this.imageShrinked = ingested.getShrinkedImage();
+        this.avatar_base64shrinked = null;
+        this.shrinkedHash = ingested.getShrinkedHash();
+
+        if (ingested.getWidth() > 0 && ingested.getHeight() > 0) {
+            this.getMetadata().setHeight(ingested.getHeight());
+            this.getMetadata().setWidth(ingested.getWidth());
+        }
+        if (this.getMetadata().getType() == null) {
+            this.getMetadata().setType(ingested.getType());
         }
     }
 
     public String getShrinkedImage() {
-        return avatar_base64shrinked;
-    }
-
-    private String calcShrinkedImage() {
-        try {
-            byte[] imgdata = getImageBytes();
-            if (imgdata == null || imgdata.length == 0) {
-                return null;
-            }
-
-            byte[] shrinked = getShrinkedImage(imgdata);
-            if (shrinked == null || shrinked.length == 0) {
-                return null;
-            }
-
-            return Base64.getEncoder().encodeToString(shrinked);
-        } catch (Exception e) {
-            Log.warn(e.getMessage(), e);
-            return null;
+        if (avatar_base64shrinked == null && imageShrinked != null) {
+            avatar_base64shrinked = Base64.getEncoder().encodeToString(imageShrinked);
         }
+        return avatar_base64shrinked;
     }
 
-    private byte[] getShrinkedImage(byte[] image)
-    {
-        String mimetype = getMetadata().getType();
-        if (image==null||mimetype==null)
-            return null;
-        
-        final Iterator it = ImageIO.getImageWritersByMIMEType( mimetype );
-        if ( !it.hasNext() )
-        {
-            Log.debug("getShrinkedImage: Cannot resize avatar. No writers available for MIME type {}.", mimetype );
-            return null;
-        }
-        final ImageWriter iw = (ImageWriter) it.next();
-
-        final int targetDimension = JiveGlobals.getIntProperty( PhotoResizer.PROPERTY_TARGETDIMENSION, PhotoResizer.PROPERTY_TARGETDIMENSION_DEFAULT );
-        final byte[] resized = PhotoResizer.cropAndShrink( image, targetDimension, iw );
-        if (resized!=null)
-        {
-            return resized;
-        }
-        else
-        {
-            Log.debug("getShrinkedImage: Cannot resize avatar. PhotoResizer.cropAndShrink failed!");
-            return null;
-        }
+    public byte[] getShrinkedImageBytes() {
+        return imageShrinked;
     }
 
     public static BufferedImage getImageFromBytes(byte[] image)
@@ -245,9 +177,14 @@ public class Avatar {
             {
                 return null;
             }
+            result.image = Base64.getDecoder().decode(result.avatar_base64);
 
             result.shrinkedHash = json.has("hashshrinked")&&json.getString("hashshrinked")!=null&&!json.getString("hashshrinked").isEmpty()?json.getString("hashshrinked"):null;
             result.avatar_base64shrinked=json.has("base64shrinked")&&json.getString("base64shrinked")!=null&&!json.getString("base64shrinked").isEmpty()?json.getString("base64shrinked"):null;
+            if (result.avatar_base64shrinked!=null)
+            {
+                result.imageShrinked = Base64.getDecoder().decode(result.avatar_base64shrinked);
+            }
 
             result.metadata=meta;
             if (json.has("metadata"))
@@ -262,27 +199,58 @@ public class Avatar {
             
             return result;
           }
-        catch (JSONException e)
+        catch (JSONException | IllegalArgumentException e)
         {
             Log.error("Could not parse Avatar Json: {}\n{}", e.getMessage(),jsonstr);
             return null;
         }
     }
 
+    /**
+     * create the binary cache representation of this avatar, the image has to be put into the blob store separately
+     * */
+    public AvatarCacheEntry toCacheEntry()
+    {
+        return new AvatarCacheEntry(AvatarHashIndex.hex2ByteArray(rawHash), AvatarHashIndex.hex2ByteArray(shrinkedHash), metadata);
+    }
+
+    /**
+     * restore an avatar from its binary cache representation and the image from the blob store
+     * @return the avatar or null if the image is not available
+     * */
+    public static Avatar fromCacheEntry(AvatarCacheEntry entry, AvatarBlobStore.Blob blob)
+    {
+        if (entry==null||blob==null)
+        {
+            return null;
+        }
+
+        Avatar result = new Avatar();
+        result.image = blob.getImage();
+        result.imageShrinked = blob.getShrinkedImage();
+        result.rawHash = AvatarHashIndex.byteArray2Hex(entry.getMainHash());
+        result.shrinkedHash = AvatarHashIndex.byteArray2Hex(entry.getShrinkedHash());
+        result.metadata.setId(entry.getId());
+        result.metadata.setWidth(entry.getWidth());
+        result.metadata.setHeight(entry.getHeight());
+        result.metadata.setType(entry.getType());
+        return result;
+    }
+
     @Override
     public String toString() {
         if (this.shrinkedHash!=null)
         {
             return "{\n"+
-                   "\"base64\":\""+avatar_base64+"\",\n"+
-                   "\"base64shrinked\":\""+this.avatar_base64shrinked+"\",\n"+
+                   "\"base64\":\""+getImageString()+"\",\n"+
+                   "\"base64shrinked\":\""+getShrinkedImage()+"\",\n"+
                    "\"hashshrinked\":\""+this.shrinkedHash+"\",\n"+
                    "\"metadata\":"+metadata.toString()+"\n"+
                    "}";
         }
         else {
             return "{\n"+
-                    "\"base64\":\""+avatar_base64+"\",\n"+
+                    "\"base64\":\""+getImageString()+"\",\n"+
                     "\"base64shrinked\":\"\",\n"+
                     "\"hashshrinked\":\"\",\n"+
                     "\"metadata\":"+metadata.toString()+"\n"+
@@ -0,0 +1,770 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * Content addressed store of avatar images. Every image is kept once per SHA-1 hash, no
+ * matter how many users have it as their avatar. Users only point to a hash, the store
+ * counts these references and drops an image as soon as no user points to it anymore.
+ * The reference of a user expires after the lifetime of the avatar cache, like the cache
+ * entry that points to the image.
+ * If the images exceed the size limit of the store, the least recently used ones are
+ * dropped; they are loaded again from PEP when they are needed. Eviction is weighted by
+ * the bytes of the images. Images larger than the maximum entry size do not count against
+ * the size limit, so that a few large avatars cannot displace many small ones. They are
+ * kept on the heap only as long as a user points to them, so they are not loaded and
+ * hashed again on every lookup.
+ * The images are split into stripes by hash, every stripe has its own lock and an equal
+ * share of the size limit, so that lookups of different images do not wait for each other.
+ * With off-heap storage, the bytes are kept in direct memory of an {@link OffHeapSlabAllocator}
+ * and only copied to the heap while an avatar is being processed.
+ */
+public class AvatarBlobStore {
+
+    private static final Logger Log = LoggerFactory.getLogger(AvatarBlobStore.class);
+
+    private static final int SLAB_SIZE = 1024*1024;
+
+    private static final int STRIPES = 16;
+
+    //an off-heap allocation gives up after evicting this many images
+    private static final int MAX_ALLOCATION_EVICTIONS = 8;
+
+    //number of least recently used images searched for one with a chunk of the needed size
+    private static final int EVICTION_SCAN = 64;
+
+    //expired references are dropped at most once per interval
+    private static final long SWEEP_INTERVAL = 60000;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    //bare jid -> hash of the avatar of this user
+    private final Map<String, Owner> owners = new ConcurrentHashMap<String, Owner>();
+
+    private volatile long maxSize;
+    private volatile long maxEntrySize;
+    private volatile long ownerLifetime = 0;
+
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    //null if the images are kept on the heap, shared by all stripes and guarded by its own lock
+    private final OffHeapSlabAllocator allocator;
+
+    public AvatarBlobStore(long maxSize)
+    {
+        this(maxSize, false);
+    }
+
+    /**
+     * @param maxSize the maximum number of bytes of all images
+     * @param offHeap true to keep the images outside of the Java heap
+     * */
+    public AvatarBlobStore(long maxSize, boolean offHeap)
+    {
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxSize;
+        this.allocator = offHeap?new OffHeapSlabAllocator(SLAB_SIZE, maxSize):null;
+        for (int i=0;i<STRIPES;i++)
+        {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * point a user to an image, the image is only stored if it is not known yet
+     * @param user the user
+     * @param hash the SHA-1 hash of the image
+     * @param image the raw image
+     * @param shrinked the shrinked image, may be null
+     * */
+    public void put(JID user, String hash, byte[] image, byte[] shrinked)
+    {
+        if (hash==null||image==null)
+        {
+            return;
+        }
+        sweepExpiredOwners();
+
+        final Owner owner = new Owner(hash, ownerLifetime>0?System.currentTimeMillis()+ownerLifetime:Long.MAX_VALUE);
+        final boolean[] newOwner = new boolean[1];
+        owners.compute(user.toBareJID(), (key, previous) -> {
+            if (previous==null||!previous.hash.equals(hash))
+            {
+                newOwner[0] = true;
+                reference(hash);
+                if (previous!=null)
+                {
+                    dereference(previous.hash);
+                }
+            }
+            return owner;
+        });
+
+        Stripe stripe = stripe(hash);
+        synchronized (stripe)
+        {
+            Entry stored = stripe.blobs.get(hash);
+            if (stored!=null)
+            {
+                if (newOwner[0])
+                {
+                    deduplicated.addAndGet(stored.size);
+                }
+                return;
+            }
+            if (!stripe.references.containsKey(hash))
+            {
+                // the user changed or released the avatar meanwhile
+                return;
+            }
+
+            Blob blob = new Blob(image, shrinked);
+            if (blob.getSize()>maxSize/STRIPES||blob.getSize()>maxEntrySize)
+            {
+                if (stripe.oversized.putIfAbsent(hash, blob)==null)
+                {
+                    Log.debug("Avatar "+hash+" with "+blob.getSize()+" bytes exceeds the maximum entry size of the blob store");
+                    rejections.incrementAndGet();
+                    stripe.oversizedSize += blob.getSize();
+                }
+                else if (newOwner[0])
+                {
+                    deduplicated.addAndGet(blob.getSize());
+                }
+                return;
+            }
+
+            Entry entry = allocator!=null?allocate(stripe, blob):new Entry(blob);
+            if (entry==null)
+            {
+                Log.debug("No off-heap memory left for avatar "+hash);
+                rejections.incrementAndGet();
+                return;
+            }
+            stripe.blobs.put(hash, entry);
+            stripe.size += entry.size;
+            evict(stripe);
+        }
+    }
+
+    /**
+     * copy an image into off-heap memory. If the memory is exhausted, least recently used
+     * images of the stripe are evicted, preferably ones whose chunk can take the image. The
+     * allocation fails after {@link #MAX_ALLOCATION_EVICTIONS} evictions, so that a single
+     * image can not flush the store.
+     * */
+    private Entry allocate(Stripe stripe, Blob blob)
+    {
+        int chunkSize;
+        synchronized (allocator)
+        {
+            chunkSize = allocator.getChunkSize(blob.getImage().length);
+        }
+        for (int evicted=0;;evicted++)
+        {
+            synchronized (allocator)
+            {
+                OffHeapSlabAllocator.Chunk image = allocator.allocate(blob.getImage());
+                OffHeapSlabAllocator.Chunk shrinked = null;
+                if (image!=null&&blob.getShrinkedImage()!=null)
+                {
+                    shrinked = allocator.allocate(blob.getShrinkedImage());
+                    if (shrinked==null)
+                    {
+                        allocator.free(image);
+                        image = null;
+                    }
+                }
+                if (image!=null)
+                {
+                    return new Entry(image, shrinked);
+                }
+            }
+            if (evicted>=MAX_ALLOCATION_EVICTIONS||!evictForChunk(stripe, chunkSize))
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * drop the least recently used image of a stripe that has a chunk of a size, or the least
+     * recently used image if there is none among the first {@link #EVICTION_SCAN} images
+     * @return false if the stripe is empty
+     * */
+    private boolean evictForChunk(Stripe stripe, int chunkSize)
+    {
+        Iterator<Entry> it = stripe.blobs.values().iterator();
+        for (int scanned=0;scanned<EVICTION_SCAN&&it.hasNext();scanned++)
+        {
+            Entry entry = it.next();
+            if (entry.hasChunk(chunkSize))
+            {
+                it.remove();
+                release(stripe, entry);
+                evictions.incrementAndGet();
+                return true;
+            }
+        }
+        return evictOne(stripe);
+    }
+
+    /**
+     * @param hash the SHA-1 hash of an image
+     * @return the image or null if it is not stored
+     * */
+    public Blob get(String hash)
+    {
+        if (hash==null)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        Stripe stripe = stripe(hash);
+        synchronized (stripe)
+        {
+            Entry entry = stripe.blobs.get(hash);
+            if (entry==null)
+            {
+                Blob oversized = stripe.oversized.get(hash);
+                if (oversized!=null)
+                {
+                    hits.incrementAndGet();
+                    return oversized;
+                }
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.toBlob();
+        }
+    }
+
+    /**
+     * remove the reference of a user to their image
+     * */
+    public void release(JID user)
+    {
+        Owner previous = owners.remove(user.toBareJID());
+        if (previous!=null)
+        {
+            dereference(previous.hash);
+        }
+    }
+
+    public void clear()
+    {
+        owners.clear();
+        for (Stripe stripe : stripes)
+        {
+            synchronized (stripe)
+            {
+                stripe.blobs.clear();
+                stripe.oversized.clear();
+                stripe.references.clear();
+                stripe.size = 0;
+                stripe.oversizedSize = 0;
+            }
+        }
+        if (allocator!=null)
+        {
+            synchronized (allocator)
+            {
+                allocator.clear();
+            }
+        }
+    }
+
+    public void setMaxSize(long maxSize)
+    {
+        this.maxSize = maxSize;
+        if (allocator!=null)
+        {
+            synchronized (allocator)
+            {
+                allocator.setBudget(maxSize);
+            }
+        }
+        for (Stripe stripe : stripes)
+        {
+            synchronized (stripe)
+            {
+                evict(stripe);
+            }
+        }
+    }
+
+    /**
+     * @param ownerLifetime the time in millis after which the reference of a user to an image expires, 0 or negative to keep it until it is released
+     * */
+    public void setOwnerLifetime(long ownerLifetime)
+    {
+        this.ownerLifetime = ownerLifetime;
+    }
+
+    private Stripe stripe(String hash)
+    {
+        return stripes[(hash.hashCode() & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    private void reference(String hash)
+    {
+        Stripe stripe = stripe(hash);
+        synchronized (stripe)
+        {
+            stripe.references.merge(hash, 1, Integer::sum);
+        }
+    }
+
+    private void dereference(String hash)
+    {
+        Stripe stripe = stripe(hash);
+        synchronized (stripe)
+        {
+            Integer count = stripe.references.get(hash);
+            if (count==null||count<=1)
+            {
+                stripe.references.remove(hash);
+                Entry entry = stripe.blobs.remove(hash);
+                if (entry!=null)
+                {
+                    release(stripe, entry);
+                }
+                Blob oversized = stripe.oversized.remove(hash);
+                if (oversized!=null)
+                {
+                    stripe.oversizedSize -= oversized.getSize();
+                }
+            }
+            else
+            {
+                stripe.references.put(hash, count-1);
+            }
+        }
+    }
+
+    /**
+     * drop the references of users whose avatar was not put again within the owner lifetime,
+     * runs at most once per {@link #SWEEP_INTERVAL}
+     * */
+    private void sweepExpiredOwners()
+    {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (ownerLifetime<=0||now-last<SWEEP_INTERVAL||!lastSweep.compareAndSet(last, now))
+        {
+            return;
+        }
+        for (Map.Entry<String, Owner> owner : owners.entrySet())
+        {
+            if (owner.getValue().expires<now&&owners.remove(owner.getKey(), owner.getValue()))
+            {
+                dereference(owner.getValue().hash);
+            }
+        }
+    }
+
+    private void evict(Stripe stripe)
+    {
+        while (stripe.size>maxSize/STRIPES)
+        {
+            if (!evictOne(stripe))
+            {
+                break;
+            }
+        }
+    }
+
+    /**
+     * drop the least recently used image of a stripe, the caller must hold the lock of the stripe
+     * @return false if the stripe is empty
+     * */
+    private boolean evictOne(Stripe stripe)
+    {
+        Iterator<Entry> it = stripe.blobs.values().iterator();
+        if (!it.hasNext())
+        {
+            return false;
+        }
+        Entry entry = it.next();
+        it.remove();
+        release(stripe, entry);
+        evictions.incrementAndGet();
+        return true;
+    }
+
+    private void release(Stripe stripe, Entry entry)
+    {
+        stripe.size -= entry.size;
+        if (allocator!=null)
+        {
+            synchronized (allocator)
+            {
+                if (entry.offHeapImage!=null)
+                {
+                    allocator.free(entry.offHeapImage);
+                }
+                if (entry.offHeapShrinked!=null)
+                {
+                    allocator.free(entry.offHeapShrinked);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes of all stored images
+     * */
+    public long getSize()
+    {
+        long size = 0;
+        for (Stripe stripe : stripes)
+        {
+            synchronized (stripe)
+            {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes of the images larger than the maximum entry size, which do not count against the size limit
+     * */
+    public long getOversizedSize()
+    {
+        long size = 0;
+        for (Stripe stripe : stripes)
+        {
+            synchronized (stripe)
+            {
+                size += stripe.oversizedSize;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @param maxEntrySize images (including the shrinked image) larger than this are kept outside of the size limit while users point to them
+     * */
+    public void setMaxEntrySize(long maxEntrySize)
+    {
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    public long getMaxEntrySize()
+    {
+        return maxEntrySize;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of images dropped to make room for other images
+     * */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of distinct images that were too large for the size limit, each counted once while it is kept
+     * */
+    public long getRejections()
+    {
+        return rejections.get();
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @return the number of distinct images stored
+     * */
+    public int getBlobCount()
+    {
+        int count = 0;
+        for (Stripe stripe : stripes)
+        {
+            synchronized (stripe)
+            {
+                count += stripe.blobs.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of users pointing to an image
+     * */
+    public int getReferenceCount()
+    {
+        return owners.size();
+    }
+
+    /**
+     * @param count the maximum number of images
+     * @return the largest images of the store, largest first
+     * */
+    public List<Usage> getLargest(int count)
+    {
+        List<Usage> all = new ArrayList<Usage>();
+        for (Stripe stripe : stripes)
+        {
+            synchronized (stripe)
+            {
+                for (Map.Entry<String, Entry> blob : stripe.blobs.entrySet())
+                {
+                    all.add(new Usage(blob.getKey(), blob.getValue().size, stripe.references.getOrDefault(blob.getKey(), 0)));
+                }
+            }
+        }
+        all.sort((a, b) -> Integer.compare(b.getSize(), a.getSize()));
+
+        Map<String, Usage> largest = new LinkedHashMap<String, Usage>();
+        for (Usage usage : all.subList(0, Math.min(count, all.size())))
+        {
+            largest.put(usage.getHash(), usage);
+        }
+        for (Map.Entry<String, Owner> owner : owners.entrySet())
+        {
+            Usage usage = largest.get(owner.getValue().hash);
+            if (usage!=null&&usage.user==null)
+            {
+                usage.user = owner.getKey();
+            }
+        }
+        return new ArrayList<Usage>(largest.values());
+    }
+
+    /**
+     * @return the number of bytes that did not have to be stored again, because another user already had the same image
+     * */
+    public long getDeduplicatedBytes()
+    {
+        return deduplicated.get();
+    }
+
+    public boolean isOffHeap()
+    {
+        return allocator!=null;
+    }
+
+    /**
+     * @return the number of bytes of direct memory reserved for images, 0 if the images are kept on the heap
+     * */
+    public long getOffHeapReservedSize()
+    {
+        if (allocator==null)
+        {
+            return 0;
+        }
+        synchronized (allocator)
+        {
+            return allocator.getReservedSize();
+        }
+    }
+
+    /**
+     * @return the number of off-heap slabs in use
+     * */
+    public int getOffHeapSlabCount()
+    {
+        if (allocator==null)
+        {
+            return 0;
+        }
+        synchronized (allocator)
+        {
+            return allocator.getSlabCount();
+        }
+    }
+
+    /**
+     * The images of one stripe of hashes.
+     */
+    private static class Stripe {
+
+        //hash -> image, in access order
+        private final LinkedHashMap<String, Entry> blobs = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+        //hash -> number of users with this avatar
+        private final Map<String, Integer> references = new HashMap<String, Integer>();
+
+        //hash -> image larger than the maximum entry size, kept while it is referenced
+        private final Map<String, Blob> oversized = new HashMap<String, Blob>();
+
+        private long size = 0;
+        private long oversizedSize = 0;
+    }
+
+    /**
+     * The image a user points to and when this reference expires.
+     */
+    private static class Owner {
+
+        private final String hash;
+        private final long expires;
+
+        private Owner(String hash, long expires)
+        {
+            this.hash = hash;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A stored image, either on the heap or in off-heap chunks.
+     */
+    private static class Entry {
+
+        private final Blob heap;
+        private final OffHeapSlabAllocator.Chunk offHeapImage;
+        private final OffHeapSlabAllocator.Chunk offHeapShrinked;
+        private final int size;
+
+        private Entry(Blob heap)
+        {
+            this.heap = heap;
+            this.offHeapImage = null;
+            this.offHeapShrinked = null;
+            this.size = heap.getSize();
+        }
+
+        private Entry(OffHeapSlabAllocator.Chunk image, OffHeapSlabAllocator.Chunk shrinked)
+        {
+            this.heap = null;
+            this.offHeapImage = image;
+            this.offHeapShrinked = shrinked;
+            this.size = image.getLength()+(shrinked!=null?shrinked.getLength():0);
+        }
+
+        /**
+         * @return true if one of the off-heap chunks of the image can hold data of a chunk size
+         * */
+        private boolean hasChunk(int chunkSize)
+        {
+            return (offHeapImage!=null&&offHeapImage.getChunkSize()>=chunkSize&&offHeapImage.getChunkSize()<=chunkSize*2)
+                    ||(offHeapShrinked!=null&&offHeapShrinked.getChunkSize()==chunkSize);
+        }
+
+        /**
+         * must be called while holding the lock of the stripe, the chunks may be reused as soon as the entry was evicted
+         * */
+        private Blob toBlob()
+        {
+            if (heap!=null)
+            {
+                return heap;
+            }
+            return new Blob(offHeapImage.read(), offHeapShrinked!=null?offHeapShrinked.read():null);
+        }
+    }
+
+    /**
+     * An image and its shrinked variant.
+     */
+    public static class Blob {
+
+        private final byte[] image;
+        private final byte[] shrinked;
+
+        Blob(byte[] image, byte[] shrinked)
+        {
+            this.image = image;
+            this.shrinked = shrinked;
+        }
+
+        public byte[] getImage()
+        {
+            return image;
+        }
+
+        /**
+         * @return the shrinked image or null if there is none
+         * */
+        public byte[] getShrinkedImage()
+        {
+            return shrinked;
+        }
+
+        public int getSize()
+        {
+            return image.length+(shrinked!=null?shrinked.length:0);
+        }
+    }
+
+    /**
+     * size and users of an image in the store
+     * */
+    public static class Usage {
+
+        private final String hash;
+        private final int size;
+        private final int references;
+        private String user;
+
+        Usage(String hash, int size, int references)
+        {
+            this.hash = hash;
+            this.size = size;
+            this.references = references;
+        }
+
+        public String getHash()
+        {
+            return hash;
+        }
+
+        /**
+         * @return the bytes of the image and the shrinked image
+         * */
+        public int getSize()
+        {
+            return size;
+        }
+
+        /**
+         * @return the number of users with this avatar
+         * */
+        public int getReferences()
+        {
+            return references;
+        }
+
+        /**
+         * @return the bare jid of one of the users with this avatar or null
+         * */
+        public String getUser()
+        {
+            return user;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import org.jivesoftware.util.cache.Cache;
+import org.xmpp.packet.JID;
+
+/**
+ * The avatar cache of the plugin: a node local {@link LocalAvatarCache} in front of the
+ * XEP398v2 cache, which is shared by all nodes in a cluster. Lookups are answered from local
+ * memory once an avatar was used on this node. Changes are written to both tiers; other
+ * nodes drop their local copy when they receive an {@link AvatarInvalidationTask}.
+ */
+public class AvatarCache {
+
+    private final Cache<String, AvatarCacheEntry> cache;
+
+    private final LocalAvatarCache local;
+
+    public AvatarCache(Cache<String, AvatarCacheEntry> cache, long localSize)
+    {
+        this.cache = cache;
+        this.local = new LocalAvatarCache(localSize);
+    }
+
+    public AvatarCacheEntry get(JID user)
+    {
+        String key = user.toBareJID();
+        AvatarCacheEntry entry = local.get(key, cache.getMaxLifetime());
+        if (entry==null)
+        {
+            long generation = local.getGeneration(key);
+            // a node of a former plugin version may have put a value of another type
+            Object value = ((Cache<String, ?>) cache).get(key);
+            if (!(value instanceof AvatarCacheEntry))
+            {
+                return null;
+            }
+            entry = (AvatarCacheEntry) value;
+            local.putIfGeneration(key, entry, generation);
+        }
+        return entry;
+    }
+
+    public void put(JID user, AvatarCacheEntry entry)
+    {
+        String key = user.toBareJID();
+        cache.put(key, entry);
+        local.put(key, entry);
+    }
+
+    public void remove(JID user)
+    {
+        String key = user.toBareJID();
+        cache.remove(key);
+        local.remove(key);
+    }
+
+    /**
+     * drop the local copy of an entry after it was changed by another node
+     * */
+    public void invalidateLocal(JID user)
+    {
+        local.remove(user.toBareJID());
+    }
+
+    public void clear()
+    {
+        cache.clear();
+        local.clear();
+    }
+
+    /**
+     * drop the local copies of all entries, the clustered cache is kept
+     * */
+    public void clearLocal()
+    {
+        local.clear();
+    }
+
+    /**
+     * @return the clustered cache
+     * */
+    public Cache<String, AvatarCacheEntry> getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * @return the node local cache
+     * */
+    public LocalAvatarCache getLocal()
+    {
+        return local;
+    }
+}
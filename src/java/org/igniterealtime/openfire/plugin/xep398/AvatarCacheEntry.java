@@ -0,0 +1,143 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.jivesoftware.util.cache.CacheSizes;
+import org.jivesoftware.util.cache.Cacheable;
+
+/**
+ * Value of the XEP398v2 cache. Holds the raw hashes and the metadata of an avatar in a
+ * versioned binary layout, so that neither base64 nor JSON has to be processed on a cache
+ * hit or when the entry gets replicated in a cluster. The image itself is kept only once
+ * per hash in the {@link AvatarBlobStore} and, in a cluster, in the XEP398Images cache
+ * (see {@link AvatarImageEntry}).
+ */
+public class AvatarCacheEntry implements Cacheable, Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final byte VERSION = 2;
+
+    private byte[] mainHash;
+    private byte[] shrinkedHash;
+    private String id;
+    private int width = -1;
+    private int height = -1;
+    private String type;
+
+    /**
+     * required for deserialization
+     * */
+    public AvatarCacheEntry() {
+    }
+
+    public AvatarCacheEntry(byte[] mainHash, byte[] shrinkedHash, AvatarMetadata metadata) {
+        this.mainHash = mainHash;
+        this.shrinkedHash = shrinkedHash;
+        this.id = metadata.getId();
+        this.width = metadata.getWidth();
+        this.height = metadata.getHeight();
+        this.type = metadata.getType();
+    }
+
+    public byte[] getMainHash() {
+        return mainHash;
+    }
+
+    public byte[] getShrinkedHash() {
+        return shrinkedHash;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public int getCachedSize() {
+        int size = CacheSizes.sizeOfObject();
+        size += sizeOfByteArray(mainHash);
+        size += sizeOfByteArray(shrinkedHash);
+        size += CacheSizes.sizeOfString(id);
+        size += CacheSizes.sizeOfString(type);
+        size += CacheSizes.sizeOfInt()*2;
+        return size;
+    }
+
+    private static int sizeOfByteArray(byte[] array) {
+        if (array==null) {
+            return CacheSizes.sizeOfObject();
+        }
+        //array header plus content, aligned to 8 bytes
+        return (16 + array.length + 7) & ~7;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(VERSION);
+        writeBytes(out, mainHash);
+        writeBytes(out, shrinkedHash);
+        writeString(out, id);
+        out.writeInt(width);
+        out.writeInt(height);
+        writeString(out, type);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        byte version = in.readByte();
+        if (version!=VERSION) {
+            throw new IOException("Unsupported avatar cache entry version: "+version);
+        }
+        mainHash = readBytes(in);
+        shrinkedHash = readBytes(in);
+        id = readString(in);
+        width = in.readInt();
+        height = in.readInt();
+        type = readString(in);
+    }
+
+    private static void writeBytes(ObjectOutput out, byte[] data) throws IOException {
+        if (data==null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static byte[] readBytes(ObjectInput in) throws IOException {
+        int length = in.readInt();
+        if (length<0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+
+    private static void writeString(ObjectOutput out, String value) throws IOException {
+        out.writeBoolean(value!=null);
+        if (value!=null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(ObjectInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
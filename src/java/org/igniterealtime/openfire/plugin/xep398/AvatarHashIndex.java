@@ -0,0 +1,165 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.xmpp.packet.JID;
+
+/**
+ * Compact index of the avatar hashes of every known user, used to stamp presences
+ * without loading the avatar image.
+ * Entries expire after the lifetime of the avatar cache, so that avatar changes the plugin
+ * did not see (e.g. while the conversion was disabled) are picked up again.
+ */
+public class AvatarHashIndex {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Map<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+
+    private volatile long maxLifetime = 0;
+
+    /**
+     * @return the entry of the user or null if the user is not indexed or the entry expired
+     * */
+    public Entry get(JID user)
+    {
+        Entry entry = index.get(user.toBareJID());
+        if (entry!=null&&entry.isExpired())
+        {
+            index.remove(user.toBareJID(), entry);
+            return null;
+        }
+        return entry;
+    }
+
+    public void put(JID user, Avatar avatar)
+    {
+        if (avatar==null||avatar.getMainHash()==null)
+        {
+            index.remove(user.toBareJID());
+            return;
+        }
+        index.put(user.toBareJID(), new Entry(hex2ByteArray(avatar.getMainHash()), hex2ByteArray(avatar.getMainHashShrinked()), avatar.getMetadata().getType(), expires()));
+    }
+
+    /**
+     * record that a user has explicitly removed their avatar
+     * */
+    public void putNoAvatar(JID user)
+    {
+        index.put(user.toBareJID(), new Entry(null, null, null, expires()));
+    }
+
+    public void remove(JID user)
+    {
+        index.remove(user.toBareJID());
+    }
+
+    public int size()
+    {
+        return index.size();
+    }
+
+    public void clear()
+    {
+        index.clear();
+    }
+
+    /**
+     * @param maxLifetime the lifetime of new entries in millis, 0 or negative to keep them until they are replaced
+     * */
+    public void setMaxLifetime(long maxLifetime)
+    {
+        this.maxLifetime = maxLifetime;
+    }
+
+    public long getMaxLifetime()
+    {
+        return maxLifetime;
+    }
+
+    private long expires()
+    {
+        long lifetime = maxLifetime;
+        return lifetime>0?System.currentTimeMillis()+lifetime:Long.MAX_VALUE;
+    }
+
+    public static byte[] hex2ByteArray(String hex)
+    {
+        if (hex==null||hex.length()%2!=0)
+        {
+            return null;
+        }
+
+        byte[] result = new byte[hex.length()/2];
+        for (int i=0;i<result.length;i++)
+        {
+            int hi = Character.digit(hex.charAt(i*2), 16);
+            int lo = Character.digit(hex.charAt(i*2+1), 16);
+            if (hi<0||lo<0)
+            {
+                return null;
+            }
+            result[i]=(byte)((hi<<4)|lo);
+        }
+        return result;
+    }
+
+    public static String byteArray2Hex(byte[] bytes)
+    {
+        if (bytes==null)
+        {
+            return null;
+        }
+
+        char[] result = new char[bytes.length*2];
+        for (int i=0;i<bytes.length;i++)
+        {
+            result[i*2]=HEX[(bytes[i]>>4)&0x0f];
+            result[i*2+1]=HEX[bytes[i]&0x0f];
+        }
+        return new String(result);
+    }
+
+    public static class Entry {
+
+        private final byte[] mainHash;      //20 byte SHA-1 of the image
+        private final byte[] shrinkedHash;  //20 byte SHA-1 of the shrinked image, may be null
+        private final String type;
+        private final long expires;         //millis
+
+        private Entry(byte[] mainHash, byte[] shrinkedHash, String type, long expires)
+        {
+            this.mainHash=mainHash;
+            this.shrinkedHash=shrinkedHash;
+            this.type=type;
+            this.expires=expires;
+        }
+
+        private boolean isExpired()
+        {
+            return expires!=Long.MAX_VALUE&&System.currentTimeMillis()>expires;
+        }
+
+        public boolean hasAvatar()
+        {
+            return mainHash!=null;
+        }
+
+        public String getMainHash()
+        {
+            return byteArray2Hex(mainHash);
+        }
+
+        public String getMainHashShrinked()
+        {
+            return byteArray2Hex(shrinkedHash);
+        }
+
+        public String getType()
+        {
+            return type;
+        }
+    }
+}
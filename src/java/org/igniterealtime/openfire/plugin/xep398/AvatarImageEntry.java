@@ -0,0 +1,98 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.jivesoftware.util.cache.CacheSizes;
+import org.jivesoftware.util.cache.Cacheable;
+
+/**
+ * Value of the XEP398Images cache. Holds the raw bytes of an image and its shrinked variant,
+ * keyed by the SHA-1 of the image, so that the other nodes of a cluster can fill their
+ * {@link AvatarBlobStore} without loading the avatar from PEP or the vCard again.
+ */
+public class AvatarImageEntry implements Cacheable, Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final byte VERSION = 1;
+
+    private byte[] image;
+    private byte[] shrinked;
+
+    /**
+     * required for deserialization
+     * */
+    public AvatarImageEntry() {
+    }
+
+    public AvatarImageEntry(byte[] image, byte[] shrinked) {
+        this.image = image;
+        this.shrinked = shrinked;
+    }
+
+    public byte[] getImage() {
+        return image;
+    }
+
+    /**
+     * @return the shrinked image or null if there is none
+     * */
+    public byte[] getShrinkedImage() {
+        return shrinked;
+    }
+
+    @Override
+    public int getCachedSize() {
+        int size = CacheSizes.sizeOfObject();
+        size += sizeOfByteArray(image);
+        size += sizeOfByteArray(shrinked);
+        return size;
+    }
+
+    private static int sizeOfByteArray(byte[] array) {
+        if (array==null) {
+            return CacheSizes.sizeOfObject();
+        }
+        //array header plus content, aligned to 8 bytes
+        return (16 + array.length + 7) & ~7;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(VERSION);
+        writeBytes(out, image);
+        writeBytes(out, shrinked);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        byte version = in.readByte();
+        if (version!=VERSION) {
+            throw new IOException("Unsupported avatar image entry version: "+version);
+        }
+        image = readBytes(in);
+        shrinked = readBytes(in);
+    }
+
+    private static void writeBytes(ObjectOutput out, byte[] data) throws IOException {
+        if (data==null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static byte[] readBytes(ObjectInput in) throws IOException {
+        int length = in.readInt();
+        if (length<0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+}
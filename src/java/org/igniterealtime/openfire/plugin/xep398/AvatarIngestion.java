@@ -0,0 +1,203 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+
+import org.jivesoftware.openfire.vcard.PhotoResizer;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turns an incoming avatar image into everything the plugin needs to know about it.
+ * The steps decode, probe the header, hash, shrink and hash the shrinked image are
+ * executed exactly once each, the bytes are handed from step to step. Images with a
+ * truncated or inconsistent header are rejected before they are decoded.
+ */
+public final class AvatarIngestion {
+
+    private static final Logger Log = LoggerFactory.getLogger(AvatarIngestion.class);
+
+    private AvatarIngestion() {
+    }
+
+    /**
+     * ingest a base64 encoded image
+     * @param base64data the image as found in a BINVAL or data element
+     * @param type the mime type or null if it should be guessed
+     * @return the result or null if the data is not valid base64 or not a valid image
+     * */
+    public static Result ingest(String base64data, String type)
+    {
+        byte[] image;
+        long start = System.nanoTime();
+        try {
+            image = Base64.getDecoder().decode(base64data.trim());
+        } catch (IllegalArgumentException e) {
+            Log.error("Invalid Base64 input", e);
+            return null;
+        } finally {
+            AvatarMetrics.record(AvatarMetrics.Operation.IMAGE_DECODE, start);
+        }
+        return ingest(image, type);
+    }
+
+    /**
+     * ingest a decoded image
+     * @param image the raw image bytes
+     * @param type the mime type or null if it should be guessed
+     * @return the result or null if the image was rejected or the hash could not be calculated
+     * */
+    public static Result ingest(byte[] image, String type)
+    {
+        ImageProbe.Info info = ImageProbe.probe(image);
+        if (info==null)
+        {
+            Log.warn("Rejected avatar image with invalid header ({} bytes)", image!=null?image.length:0);
+            return null;
+        }
+        AvatarTrace.imageSize(image.length);
+
+        byte[] hash;
+        long start = System.nanoTime();
+        try {
+            hash = sha1(image);
+        } catch (NoSuchAlgorithmException e) {
+            Log.error("Error while calculating Hashes (Index 0): ",e);
+            return null;
+        } finally {
+            AvatarMetrics.record(AvatarMetrics.Operation.IMAGE_HASH, start);
+        }
+
+        if (type==null)
+        {
+            type = info.getType()!=null?info.getType():"image/*";
+        }
+
+        int width = info.getWidth();
+        int height = info.getHeight();
+
+        start = System.nanoTime();
+        byte[] shrinked = shrink(image, type);
+        AvatarMetrics.record(AvatarMetrics.Operation.IMAGE_SHRINK, start);
+        byte[] shrinkedHash = null;
+        if (shrinked!=null)
+        {
+            try {
+                shrinkedHash = sha1(shrinked);
+            } catch (NoSuchAlgorithmException e) {
+                Log.error("Error while calculating Hashes (Index 4): ",e);
+                shrinked = null;
+            }
+        }
+
+        return new Result(image, hash, type, width, height, shrinked, shrinkedHash);
+    }
+
+    private static byte[] sha1(byte[] data) throws NoSuchAlgorithmException
+    {
+        return MessageDigest.getInstance("SHA-1").digest(data);
+    }
+
+    /**
+     * @return the SHA-1 hash of the data as hex string or null if it could not be calculated
+     * */
+    public static String sha1Hex(byte[] data)
+    {
+        try {
+            return AvatarHashIndex.byteArray2Hex(sha1(data));
+        } catch (NoSuchAlgorithmException e) {
+            Log.error("Error while calculating Hash: ",e);
+            return null;
+        }
+    }
+
+    private static byte[] shrink(byte[] image, String mimetype)
+    {
+        if (image==null||image.length==0||mimetype==null)
+            return null;
+
+        final Iterator<ImageWriter> it = ImageIO.getImageWritersByMIMEType( mimetype );
+        if ( !it.hasNext() )
+        {
+            Log.debug("shrink: Cannot resize avatar. No writers available for MIME type {}.", mimetype );
+            return null;
+        }
+        final ImageWriter iw = it.next();
+
+        try {
+            final int targetDimension = JiveGlobals.getIntProperty( PhotoResizer.PROPERTY_TARGETDIMENSION, PhotoResizer.PROPERTY_TARGETDIMENSION_DEFAULT );
+            final byte[] resized = PhotoResizer.cropAndShrink( image, targetDimension, iw );
+            if (resized==null||resized.length==0)
+            {
+                Log.debug("shrink: Cannot resize avatar. PhotoResizer.cropAndShrink failed!");
+                return null;
+            }
+            return resized;
+        } catch (Exception e) {
+            Log.warn(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Immutable outcome of an ingestion.
+     */
+    public static final class Result {
+
+        private final byte[] image;
+        private final byte[] hash;
+        private final String type;
+        private final int width;
+        private final int height;
+        private final byte[] shrinkedImage;
+        private final byte[] shrinkedHash;
+
+        private Result(byte[] image, byte[] hash, String type, int width, int height, byte[] shrinkedImage, byte[] shrinkedHash)
+        {
+            this.image = image;
+            this.hash = hash;
+            this.type = type;
+            this.width = width;
+            this.height = height;
+            this.shrinkedImage = shrinkedImage;
+            this.shrinkedHash = shrinkedHash;
+        }
+
+        public byte[] getImage() {
+            return image;
+        }
+
+        public String getHash() {
+            return AvatarHashIndex.byteArray2Hex(hash);
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return the shrinked image or null if the image could not be shrinked
+         * */
+        public byte[] getShrinkedImage() {
+            return shrinkedImage;
+        }
+
+        public String getShrinkedHash() {
+            return AvatarHashIndex.byteArray2Hex(shrinkedHash);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.xmpp.packet.JID;
+
+/**
+ * Tells the other nodes of a cluster that the avatar of a user has changed, so that they
+ * drop everything they keep about it locally (local cache, hash index, images, stamps).
+ */
+public class AvatarInvalidationTask implements ClusterTask<Void> {
+
+    private String user;
+
+    /**
+     * required for deserialization
+     * */
+    public AvatarInvalidationTask() {
+    }
+
+    public AvatarInvalidationTask(JID user) {
+        this.user = user.toBareJID();
+    }
+
+    /**
+     * send the invalidation of a user to all other nodes, does nothing if clustering is not started
+     * */
+    public static void broadcast(JID user)
+    {
+        if (ClusterManager.isClusteringStarted())
+        {
+            CacheFactory.doClusterTask(new AvatarInvalidationTask(user));
+        }
+    }
+
+    @Override
+    public void run() {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        if (plugin!=null)
+        {
+            plugin.invalidateLocal(new JID(user));
+        }
+    }
+
+    @Override
+    public Void getResult() {
+        return null;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeUTF(user);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        user = in.readUTF();
+    }
+}
@@ -0,0 +1,370 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts and times the conversion and lookup paths of the plugin. Operations are timed with
+ * <pre>
+ * long start = System.nanoTime();
+ * try { ... } finally { AvatarMetrics.record(AvatarMetrics.Operation.GET_AVATAR, start); }
+ * </pre>
+ * The metrics are published as MBean and, for the most important ones, as Openfire statistics.
+ * Recorded operations are also added to the {@link AvatarTrace} of the thread.
+ */
+public class AvatarMetrics implements AvatarMetricsMXBean {
+
+    private static final Logger Log = LoggerFactory.getLogger(AvatarMetrics.class);
+
+    public static final String OBJECT_NAME = "org.igniterealtime.openfire.plugin.xep398:type=AvatarMetrics";
+
+    public enum Operation {
+        GET_AVATAR,
+        GET_AVATAR_FROM_VCARD,
+        LOAD_FROM_PEP,
+        LOAD_FROM_VCARD,
+        INCOMING_PRESENCE,
+        OUTGOING_PRESENCE,
+        IQ_PUBSUB_SET,
+        IQ_VCARD_SET,
+        IQ_VCARD_RESULT,
+        IQ_JABBER_IQ_AVATAR,
+        IQ_STORAGE_CLIENT_AVATAR,
+        ROUTE_DATA,
+        ROUTE_METADATA,
+        ROUTE_VCARD_UPDATE,
+        IMAGE_DECODE,
+        IMAGE_READER,
+        IMAGE_HASH,
+        IMAGE_SHRINK,
+        PEP_SAVE_NODE,
+        PEP_PUBLISH_ITEM,
+        VCARD_SET,
+        PRESENCE_BROADCAST
+    }
+
+    public enum Counter {
+        CACHE_HIT,
+        CACHE_MISS,
+        NEGATIVE_CACHE_HIT,
+        CONVERSION_PEP_TO_VCARD,
+        CONVERSION_VCARD_TO_PEP,
+        CONVERSION_XEP0008_TO_PEP,
+        INVALID_IMAGE
+    }
+
+    private static final AvatarMetrics INSTANCE = new AvatarMetrics();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+
+    private AvatarMetrics()
+    {
+        for (int i=0;i<histograms.length;i++)
+        {
+            histograms[i] = new LatencyHistogram();
+        }
+        for (int i=0;i<counters.length;i++)
+        {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    public static AvatarMetrics getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * record the duration of an operation
+     * @param operation the operation
+     * @param start the {@link System#nanoTime()} when the operation started
+     * */
+    public static void record(Operation operation, long start)
+    {
+        long nanos = System.nanoTime()-start;
+        INSTANCE.histograms[operation.ordinal()].record(nanos);
+        AvatarTrace.stage(operation, nanos);
+    }
+
+    public static void increment(Counter counter)
+    {
+        INSTANCE.counters[counter.ordinal()].increment();
+    }
+
+    public LatencyHistogram getHistogram(Operation operation)
+    {
+        return histograms[operation.ordinal()];
+    }
+
+    public long getCount(Counter counter)
+    {
+        return counters[counter.ordinal()].sum();
+    }
+
+    void register()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name))
+            {
+                server.registerMBean(this, name);
+            }
+        }
+        catch (Exception e)
+        {
+            Log.warn("Could not register avatar metrics MBean: "+e.getMessage(), e);
+        }
+    }
+
+    void unregister()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+            {
+                server.unregisterMBean(name);
+            }
+        }
+        catch (Exception e)
+        {
+            Log.warn("Could not unregister avatar metrics MBean: "+e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public List<OperationStatistics> getOperations()
+    {
+        List<OperationStatistics> result = new ArrayList<OperationStatistics>();
+        for (Operation operation : Operation.values())
+        {
+            result.add(new OperationStatistics(operation.name(), getHistogram(operation)));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getCounters()
+    {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Counter counter : Counter.values())
+        {
+            result.put(counter.name(), getCount(counter));
+        }
+        return result;
+    }
+
+    @Override
+    public long getLocalCacheHits()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getAvatarCache().getLocal().getHits():0;
+    }
+
+    @Override
+    public long getLocalCacheMisses()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getAvatarCache().getLocal().getMisses():0;
+    }
+
+    @Override
+    public long getLocalCacheEvictions()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getAvatarCache().getLocal().getEvictions():0;
+    }
+
+    @Override
+    public long getLocalCacheSize()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getAvatarCache().getLocal().getSize():0;
+    }
+
+    @Override
+    public long getBlobStoreHits()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getBlobStore().getHits():0;
+    }
+
+    @Override
+    public long getBlobStoreMisses()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getBlobStore().getMisses():0;
+    }
+
+    @Override
+    public long getBlobStoreEvictions()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getBlobStore().getEvictions():0;
+    }
+
+    @Override
+    public long getBlobStoreSize()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getBlobStore().getSize():0;
+    }
+
+    @Override
+    public long getNegativeCacheSavedLookups()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getNegativeCache().getSavedLookups():0;
+    }
+
+    @Override
+    public long getFragmentCacheHits()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getFragmentCache().getHits():0;
+    }
+
+    @Override
+    public long getFragmentCacheMisses()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getFragmentCache().getMisses():0;
+    }
+
+    @Override
+    public long getFragmentCacheSize()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getFragmentCache().getSize():0;
+    }
+
+    @Override
+    public int getHashIndexSize()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getHashIndex().size():0;
+    }
+
+    @Override
+    public int getConversionQueueDepth()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getConversionExecutor().getQueueDepth():0;
+    }
+
+    @Override
+    public long getConversionsRejected()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getConversionExecutor().getRejectedCount():0;
+    }
+
+    @Override
+    public long getConversionsCoalesced()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null?plugin.getConversionExecutor().getCoalescedCount():0;
+    }
+
+    @Override
+    public long getSharedLoads()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null&&plugin.getHandler()!=null?plugin.getHandler().getAvatarLoader().getSharedLoads():0;
+    }
+
+    @Override
+    public long getLoadTimeouts()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null&&plugin.getHandler()!=null?plugin.getHandler().getAvatarLoader().getTimeouts():0;
+    }
+
+    @Override
+    public long getUnchangedUpdates()
+    {
+        XEP398Plugin plugin = XEP398Plugin.getInstance();
+        return plugin!=null&&plugin.getHandler()!=null?plugin.getHandler().getUnchangedUpdates():0;
+    }
+
+    @Override
+    public void reset()
+    {
+        for (LatencyHistogram histogram : histograms)
+        {
+            histogram.reset();
+        }
+        for (LongAdder counter : counters)
+        {
+            counter.reset();
+        }
+    }
+
+    /**
+     * count and latency of an operation, latencies in microseconds
+     */
+    public static class OperationStatistics {
+
+        private final String name;
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p99;
+        private final double max;
+
+        OperationStatistics(String name, LatencyHistogram histogram)
+        {
+            this.name = name;
+            this.count = histogram.getCount();
+            this.mean = count>0?histogram.getTotal()/(double) count/1000.0:0;
+            this.p50 = histogram.getPercentile(50)/1000.0;
+            this.p99 = histogram.getPercentile(99)/1000.0;
+            this.max = histogram.getMax()/1000.0;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public double getMean()
+        {
+            return mean;
+        }
+
+        public double getP50()
+        {
+            return p50;
+        }
+
+        public double getP99()
+        {
+            return p99;
+        }
+
+        public double getMax()
+        {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of the {@link AvatarMetrics}.
+ */
+public interface AvatarMetricsMXBean {
+
+    /**
+     * @return count and latency of every instrumented operation
+     * */
+    List<AvatarMetrics.OperationStatistics> getOperations();
+
+    /**
+     * @return the event counters, e.g. cache hits and misses
+     * */
+    Map<String, Long> getCounters();
+
+    long getLocalCacheHits();
+
+    long getLocalCacheMisses();
+
+    long getLocalCacheEvictions();
+
+    long getLocalCacheSize();
+
+    long getBlobStoreHits();
+
+    long getBlobStoreMisses();
+
+    long getBlobStoreEvictions();
+
+    long getBlobStoreSize();
+
+    long getNegativeCacheSavedLookups();
+
+    long getFragmentCacheHits();
+
+    long getFragmentCacheMisses();
+
+    long getFragmentCacheSize();
+
+    int getHashIndexSize();
+
+    int getConversionQueueDepth();
+
+    long getConversionsRejected();
+
+    long getConversionsCoalesced();
+
+    long getSharedLoads();
+
+    long getLoadTimeouts();
+
+    long getUnchangedUpdates();
+
+    /**
+     * set all operations and counters to zero
+     * */
+    void reset();
+}
@@ -0,0 +1,292 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * Converts the vCard avatars of all users to PEP, including users that did not change
+ * their avatar since the conversion was enabled.
+ * The users are processed in alphabetical order in batches. Every user is converted on
+ * the {@link ConversionExecutor} worker of the user, so the conversion can not race an
+ * avatar change of the same user; users of a batch on different workers are converted in
+ * parallel. The users are only offered to the workers, while a queue is half full the job
+ * waits, so that avatar updates are not rejected. After each batch the last user is stored as checkpoint, so that a paused or
+ * interrupted job (e.g. by a restart) continues where it stopped. The batches are
+ * throttled to a maximum number of users per second. No presences are broadcast for
+ * converted users, their contacts see the new hash with the next presence of the user.
+ */
+public class AvatarMigrationJob {
+
+    private static final Logger Log = LoggerFactory.getLogger(AvatarMigrationJob.class);
+
+    private static final String PROPERTY_CHECKPOINT = "xmpp.xep0398.migration.checkpoint";
+    private static final String PROPERTY_STATE = "xmpp.xep0398.migration.state";
+    private static final String PROPERTY_CONVERTED = "xmpp.xep0398.migration.converted";
+    private static final String PROPERTY_PROCESSED = "xmpp.xep0398.migration.processed";
+
+    public enum State { IDLE, RUNNING, PAUSED, FINISHED }
+
+    //pause before a user is offered again to a busy worker
+    private static final long OFFER_RETRY_DELAY = 100;
+
+    private final XEP398IQHandler handler;
+
+    private final ConversionExecutor executor;
+
+    private volatile State state;
+    private volatile Thread thread = null;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong converted = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile int total = 0;
+    private volatile long startedAt = 0;
+
+    public AvatarMigrationJob(XEP398IQHandler handler, ConversionExecutor executor)
+    {
+        this.handler = handler;
+        this.executor = executor;
+        this.state = State.valueOf(JiveGlobals.getProperty(PROPERTY_STATE, State.IDLE.name()));
+        this.processed.set(JiveGlobals.getLongProperty(PROPERTY_PROCESSED, 0));
+        this.converted.set(JiveGlobals.getLongProperty(PROPERTY_CONVERTED, 0));
+    }
+
+    /**
+     * continue a job that was running when the plugin was stopped
+     * */
+    public void resumeAfterRestart()
+    {
+        if (state==State.RUNNING)
+        {
+            Log.info("Resuming avatar migration after user "+getCheckpoint());
+            state = State.PAUSED;
+            start();
+        }
+    }
+
+    /**
+     * start the job or continue it after the checkpoint
+     * */
+    public synchronized void start()
+    {
+        if (thread!=null)
+        {
+            return;
+        }
+        if (state==State.FINISHED||state==State.IDLE)
+        {
+            reset();
+        }
+        setState(State.RUNNING);
+        startedAt = System.currentTimeMillis();
+        thread = new Thread(this::run, "xep398-migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * stop the job after the current batch, it can be continued with {@link #start()}
+     * */
+    public synchronized void pause()
+    {
+        if (state==State.RUNNING)
+        {
+            setState(State.PAUSED);
+        }
+    }
+
+    /**
+     * forget the checkpoint and the counters, the next start begins with the first user
+     * */
+    public synchronized void reset()
+    {
+        if (thread!=null)
+        {
+            return;
+        }
+        JiveGlobals.deleteProperty(PROPERTY_CHECKPOINT);
+        processed.set(0);
+        converted.set(0);
+        skipped.set(0);
+        failed.set(0);
+        saveCounters();
+        setState(State.IDLE);
+    }
+
+    /**
+     * pause the job without changing the stored state, so that it resumes after a restart
+     * */
+    public void shutdown()
+    {
+        Thread running = thread;
+        if (running!=null)
+        {
+            running.interrupt();
+        }
+    }
+
+    private void run()
+    {
+        try
+        {
+            String domain = XMPPServer.getInstance().getServerInfo().getXMPPDomain();
+            TreeSet<String> usernames = new TreeSet<String>(UserManager.getInstance().getUsernames());
+            total = usernames.size();
+
+            String checkpoint = getCheckpoint();
+            List<String> pending = new ArrayList<String>(checkpoint!=null?usernames.tailSet(checkpoint, false):usernames);
+            int batchSize = Math.max(1, XEP398Plugin.XMPP_MIGRATION_WORKERS.getValue()*4);
+
+            for (int start=0;start<pending.size()&&state==State.RUNNING;start+=batchSize)
+            {
+                long batchStart = System.currentTimeMillis();
+                List<String> batch = pending.subList(start, Math.min(pending.size(), start+batchSize));
+
+                final CountDownLatch done = new CountDownLatch(batch.size());
+                for (String username : batch)
+                {
+                    final JID user = new JID(username, domain, null);
+                    Runnable task = () -> {
+                        try
+                        {
+                            migrate(user);
+                        }
+                        finally
+                        {
+                            done.countDown();
+                        }
+                    };
+                    while (!executor.offer(user, task))
+                    {
+                        Thread.sleep(OFFER_RETRY_DELAY);
+                    }
+                }
+                done.await();
+
+                JiveGlobals.setProperty(PROPERTY_CHECKPOINT, batch.get(batch.size()-1));
+                saveCounters();
+
+                // throttle to the configured number of users per second
+                int rate = Math.max(1, XEP398Plugin.XMPP_MIGRATION_RATE.getValue());
+                long wait = batch.size()*1000L/rate-(System.currentTimeMillis()-batchStart);
+                if (wait>0)
+                {
+                    Thread.sleep(wait);
+                }
+            }
+
+            if (state==State.RUNNING)
+            {
+                setState(State.FINISHED);
+                Log.info("Avatar migration finished: "+converted.get()+" of "+processed.get()+" users converted, "+failed.get()+" failed");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e)
+        {
+            Log.error("Avatar migration stopped: "+e.getMessage(), e);
+            setState(State.PAUSED);
+        }
+        finally
+        {
+            saveCounters();
+            thread = null;
+        }
+    }
+
+    private void migrate(JID user)
+    {
+        try
+        {
+            if (handler.migrate(user))
+            {
+                converted.incrementAndGet();
+            }
+            else
+            {
+                skipped.incrementAndGet();
+            }
+        }
+        catch (Exception e)
+        {
+            failed.incrementAndGet();
+            Log.warn("Could not migrate avatar of "+user.toBareJID()+": "+e.getMessage());
+        }
+        processed.incrementAndGet();
+    }
+
+    private void setState(State state)
+    {
+        this.state = state;
+        JiveGlobals.setProperty(PROPERTY_STATE, state.name());
+    }
+
+    private void saveCounters()
+    {
+        JiveGlobals.setProperty(PROPERTY_PROCESSED, String.valueOf(processed.get()));
+        JiveGlobals.setProperty(PROPERTY_CONVERTED, String.valueOf(converted.get()));
+    }
+
+    public State getState()
+    {
+        return state;
+    }
+
+    /**
+     * @return the last user of the last completed batch or null
+     * */
+    public String getCheckpoint()
+    {
+        return JiveGlobals.getProperty(PROPERTY_CHECKPOINT);
+    }
+
+    public long getProcessed()
+    {
+        return processed.get();
+    }
+
+    public long getConverted()
+    {
+        return converted.get();
+    }
+
+    /**
+     * @return the number of users without a vCard avatar or with a PEP avatar, since the job was started on this node
+     * */
+    public long getSkipped()
+    {
+        return skipped.get();
+    }
+
+    public long getFailed()
+    {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of users of the current run, 0 if the job was not started since the plugin started
+     * */
+    public int getTotal()
+    {
+        return total;
+    }
+
+    public long getStartedAt()
+    {
+        return startedAt;
+    }
+}
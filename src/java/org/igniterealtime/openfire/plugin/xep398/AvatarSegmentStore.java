@@ -0,0 +1,743 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * Persistent store of avatar images on the local disk, so that a restarted node serves
+ * avatars without loading and converting them again.
+ * The store consists of append-only segment files. A segment holds two kinds of records:
+ * images (raw bytes, shrinked bytes and metadata, written once per SHA-1 hash) and owner
+ * records that point a user to the hash of their avatar. The index is rebuilt from the
+ * segments on startup, images are read through memory mapped windows of the segments.
+ * Images no user points to anymore stay in the segments until they are compacted.
+ * The store does not know whether an avatar was changed while the plugin was not running,
+ * callers have to check the hash of a stored avatar against PEP or the vCard.
+ */
+public class AvatarSegmentStore {
+
+    private static final Logger Log = LoggerFactory.getLogger(AvatarSegmentStore.class);
+
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".dat";
+
+    private static final byte RECORD_IMAGE = 1;
+    private static final byte RECORD_OWNER = 2;
+
+    //kind, payload length, crc of the payload
+    private static final int HEADER_SIZE = 1+4+4;
+
+    //compact if more than this part of the segments is garbage
+    private static final double COMPACTION_RATIO = 0.5;
+
+    //segments are mapped in windows of this size once a window is completely written
+    private static final int WINDOW_SIZE = 4*1024*1024;
+
+    private final File directory;
+
+    private final long segmentSize;
+
+    //segment number -> segment, in the order they were written
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+    //hash -> location of the image record
+    private final Map<String, Location> images = new HashMap<String, Location>();
+
+    //bare jid -> owner record
+    private final Map<String, Owner> owners = new HashMap<String, Owner>();
+
+    //hash -> number of users with this avatar
+    private final Map<String, Integer> references = new HashMap<String, Integer>();
+
+    private Segment active = null;
+
+    private long reads = 0;
+    private long writes = 0;
+    private long compactions = 0;
+
+    /**
+     * open the store and rebuild the index from the existing segments
+     * @param directory the directory of the segment files, created if missing
+     * @param segmentSize the size at which a new segment is started
+     * */
+    public AvatarSegmentStore(File directory, long segmentSize) throws IOException
+    {
+        this.directory = directory;
+        this.segmentSize = Math.min(Integer.MAX_VALUE, Math.max(1024*1024, segmentSize));
+
+        if (!directory.isDirectory()&&!directory.mkdirs())
+        {
+            throw new IOException("Could not create avatar store directory "+directory);
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX)&&name.endsWith(SUFFIX));
+        if (files!=null)
+        {
+            Arrays.sort(files);
+            for (File file : files)
+            {
+                try
+                {
+                    int number = Integer.parseInt(file.getName().substring(PREFIX.length(), file.getName().length()-SUFFIX.length()));
+                    Segment segment = new Segment(number, file);
+                    segments.put(number, segment);
+                    replay(segment);
+                }
+                catch (NumberFormatException e)
+                {
+                    Log.warn("Ignoring unknown file in avatar store: "+file);
+                }
+            }
+        }
+
+        Log.info("Opened avatar store "+directory+" with "+images.size()+" images of "+owners.size()+" users in "+segments.size()+" segments");
+    }
+
+    /**
+     * read all records of a segment into the index, a torn record at the end of the
+     * segment (e.g. after a crash) is cut off
+     * */
+    private void replay(Segment segment) throws IOException
+    {
+        long size = segment.getLength();
+        int position = 0;
+        while (position+HEADER_SIZE<=size)
+        {
+            ByteBuffer header = segment.read(position, HEADER_SIZE);
+            byte kind = header.get(0);
+            int length = header.getInt(1);
+            int crc = header.getInt(5);
+            int payload = position+HEADER_SIZE;
+            if (length<0||payload+(long) length>size)
+            {
+                break;
+            }
+            ByteBuffer record = segment.read(payload, length);
+            if (crc!=crc(record))
+            {
+                break;
+            }
+
+            try
+            {
+                if (kind==RECORD_IMAGE)
+                {
+                    String hash = readHash(record, 0);
+                    if (hash!=null)
+                    {
+                        images.putIfAbsent(hash, new Location(segment, payload, length));
+                    }
+                }
+                else if (kind==RECORD_OWNER)
+                {
+                    String jid = readString(record);
+                    String hash = readHash(record, record.position());
+                    applyOwner(jid, hash, HEADER_SIZE+length);
+                }
+            }
+            catch (BufferUnderflowException e)
+            {
+                break;
+            }
+            position = payload+length;
+        }
+
+        if (position<segment.getLength())
+        {
+            Log.warn("Cutting off "+(segment.getLength()-position)+" bytes of a torn record in "+segment.file);
+            segment.truncate(position);
+        }
+    }
+
+    /**
+     * store the avatar of a user, the image is only written if its hash is not known yet
+     * @param user the owner of the avatar
+     * @param avatar the avatar
+     * */
+    public synchronized void put(JID user, Avatar avatar) throws IOException
+    {
+        String hash = avatar.getMainHash();
+        if (hash==null||avatar.getImageBytes()==null)
+        {
+            return;
+        }
+
+        if (!images.containsKey(hash))
+        {
+            images.put(hash, append(RECORD_IMAGE, encodeImage(avatar)));
+        }
+
+        Owner owner = owners.get(user.toBareJID());
+        if (owner==null||!hash.equals(owner.hash))
+        {
+            writeOwner(user.toBareJID(), hash);
+        }
+    }
+
+    /**
+     * forget the avatar of a user
+     * */
+    public synchronized void release(JID user) throws IOException
+    {
+        if (owners.containsKey(user.toBareJID()))
+        {
+            writeOwner(user.toBareJID(), null);
+        }
+    }
+
+    /**
+     * @param user the user
+     * @return the stored avatar of the user or null if there is none
+     * */
+    public synchronized Avatar get(JID user)
+    {
+        Owner owner = owners.get(user.toBareJID());
+        if (owner==null)
+        {
+            return null;
+        }
+
+        Location location = images.get(owner.hash);
+        if (location==null)
+        {
+            return null;
+        }
+
+        try
+        {
+            Avatar avatar = decodeImage(location.segment.read(location.offset, location.length));
+            reads++;
+            return avatar;
+        }
+        catch (IOException|BufferUnderflowException e)
+        {
+            Log.warn("Could not read avatar of "+user.toBareJID()+" from "+location.segment.file+": "+e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of bytes in the segments that are not needed anymore
+     * */
+    public synchronized long getGarbageSize()
+    {
+        return getSize()-getLiveSize();
+    }
+
+    private long getLiveSize()
+    {
+        long live = 0;
+        for (Map.Entry<String, Integer> reference : references.entrySet())
+        {
+            Location location = images.get(reference.getKey());
+            if (location!=null)
+            {
+                live += HEADER_SIZE+location.length;
+            }
+        }
+        for (Owner owner : owners.values())
+        {
+            live += owner.recordSize;
+        }
+        return live;
+    }
+
+    /**
+     * rewrite the segments if more than half of them is garbage
+     * @return true if the store was compacted
+     * */
+    public synchronized boolean compactIfNeeded() throws IOException
+    {
+        long size = getSize();
+        if (size<segmentSize||getGarbageSize()<size*COMPACTION_RATIO)
+        {
+            return false;
+        }
+        compact();
+        return true;
+    }
+
+    /**
+     * copy all images that are still referenced and all owner records into new segments
+     * and delete the old segments
+     * */
+    public synchronized void compact() throws IOException
+    {
+        long start = System.currentTimeMillis();
+        long before = getSize();
+
+        List<Segment> old = new ArrayList<Segment>(segments.values());
+        Map<String, Owner> liveOwners = new HashMap<String, Owner>(owners);
+        active = null;
+
+        Map<String, Location> liveImages = new HashMap<String, Location>();
+        for (String hash : references.keySet())
+        {
+            Location location = images.get(hash);
+            if (location!=null)
+            {
+                byte[] payload = new byte[location.length];
+                location.segment.read(location.offset, location.length).get(payload);
+                liveImages.put(hash, append(RECORD_IMAGE, payload));
+            }
+        }
+
+        images.clear();
+        images.putAll(liveImages);
+        owners.clear();
+        references.clear();
+        for (Map.Entry<String, Owner> owner : liveOwners.entrySet())
+        {
+            writeOwner(owner.getKey(), owner.getValue().hash);
+        }
+
+        // the new segments are complete, a crash from here on leaves duplicates that are
+        // resolved by the replay order
+        for (Segment segment : old)
+        {
+            segments.remove(segment.number);
+            segment.delete();
+        }
+
+        compactions++;
+        Log.info("Compacted avatar store from "+before+" to "+getSize()+" bytes in "+(System.currentTimeMillis()-start)+" ms");
+    }
+
+    /**
+     * delete all segments, the avatars are stored again when they are loaded the next time
+     * */
+    public synchronized void clear()
+    {
+        for (Segment segment : segments.values())
+        {
+            segment.delete();
+        }
+        segments.clear();
+        images.clear();
+        owners.clear();
+        references.clear();
+        active = null;
+    }
+
+    public synchronized void close()
+    {
+        for (Segment segment : segments.values())
+        {
+            segment.close();
+        }
+        segments.clear();
+        images.clear();
+        owners.clear();
+        references.clear();
+        active = null;
+    }
+
+    private void writeOwner(String jid, String hash) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, jid);
+        writeHash(out, hash);
+        out.flush();
+
+        byte[] payload = bytes.toByteArray();
+        append(RECORD_OWNER, payload);
+        applyOwner(jid, hash, HEADER_SIZE+payload.length);
+    }
+
+    private void applyOwner(String jid, String hash, int recordSize)
+    {
+        Owner previous = hash!=null?owners.put(jid, new Owner(hash, recordSize)):owners.remove(jid);
+        if (hash!=null)
+        {
+            references.merge(hash, 1, Integer::sum);
+        }
+        if (previous!=null)
+        {
+            references.computeIfPresent(previous.hash, (k, count) -> count>1?count-1:null);
+        }
+    }
+
+    private Location append(byte kind, byte[] payload) throws IOException
+    {
+        if (active==null||(active.getLength()>0&&active.getLength()+HEADER_SIZE+payload.length>segmentSize))
+        {
+            int number = segments.isEmpty()?1:segments.lastKey()+1;
+            active = new Segment(number, new File(directory, String.format("%s%08d%s", PREFIX, number, SUFFIX)));
+            segments.put(number, active);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE+payload.length);
+        record.put(kind);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+
+        long offset = active.append(record);
+        writes++;
+        return new Location(active, (int) offset+HEADER_SIZE, payload.length);
+    }
+
+    private static byte[] encodeImage(Avatar avatar) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(avatar.getImageBytes().length+(avatar.getShrinkedImageBytes()!=null?avatar.getShrinkedImageBytes().length:0)+128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        AvatarMetadata metadata = avatar.getMetadata();
+        writeHash(out, avatar.getMainHash());
+        writeHash(out, avatar.getMainHashShrinked());
+        writeString(out, metadata.getId());
+        writeString(out, metadata.getType());
+        out.writeInt(metadata.getWidth());
+        out.writeInt(metadata.getHeight());
+        writeBytes(out, avatar.getImageBytes());
+        writeBytes(out, avatar.getShrinkedImageBytes());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Avatar decodeImage(ByteBuffer record)
+    {
+        byte[] mainHash = readHashBytes(record);
+        byte[] shrinkedHash = readHashBytes(record);
+        AvatarMetadata metadata = new AvatarMetadata();
+        metadata.setId(readString(record));
+        metadata.setType(readString(record));
+        metadata.setWidth(record.getInt());
+        metadata.setHeight(record.getInt());
+        byte[] image = readBytes(record);
+        byte[] shrinked = readBytes(record);
+        return Avatar.fromCacheEntry(new AvatarCacheEntry(mainHash, shrinkedHash, metadata), new AvatarBlobStore.Blob(image, shrinked));
+    }
+
+    private static void writeHash(DataOutputStream out, String hash) throws IOException
+    {
+        byte[] raw = hash!=null?AvatarHashIndex.hex2ByteArray(hash):null;
+        out.writeByte(raw!=null?raw.length:0);
+        if (raw!=null)
+        {
+            out.write(raw);
+        }
+    }
+
+    private static String readHash(ByteBuffer buffer, int position)
+    {
+        ByteBuffer record = buffer.duplicate();
+        record.position(position);
+        byte[] raw = readHashBytes(record);
+        return raw!=null?AvatarHashIndex.byteArray2Hex(raw):null;
+    }
+
+    private static byte[] readHashBytes(ByteBuffer record)
+    {
+        int length = record.get()&0xff;
+        if (length==0)
+        {
+            return null;
+        }
+        byte[] raw = new byte[length];
+        record.get(raw);
+        return raw;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        if (value==null)
+        {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] raw = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(raw.length);
+        out.write(raw);
+    }
+
+    private static String readString(ByteBuffer record)
+    {
+        short length = record.getShort();
+        if (length<0)
+        {
+            return null;
+        }
+        byte[] raw = new byte[length];
+        record.get(raw);
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException
+    {
+        out.writeInt(data!=null?data.length:-1);
+        if (data!=null)
+        {
+            out.write(data);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer record)
+    {
+        int length = record.getInt();
+        if (length<0)
+        {
+            return null;
+        }
+        byte[] data = new byte[length];
+        record.get(data);
+        return data;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length)
+    {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+        record.limit(offset+length);
+        return record.slice();
+    }
+
+    private static int crc(ByteBuffer record)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return the number of bytes of all segments
+     * */
+    public synchronized long getSize()
+    {
+        long size = 0;
+        for (Segment segment : segments.values())
+        {
+            size += segment.getLength();
+        }
+        return size;
+    }
+
+    public synchronized int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+    /**
+     * @return the number of distinct images in the segments
+     * */
+    public synchronized int getImageCount()
+    {
+        return images.size();
+    }
+
+    /**
+     * @return the number of users with a stored avatar
+     * */
+    public synchronized int getOwnerCount()
+    {
+        return owners.size();
+    }
+
+    /**
+     * @return the number of avatars served from the disk
+     * */
+    public synchronized long getReadCount()
+    {
+        return reads;
+    }
+
+    public synchronized long getWriteCount()
+    {
+        return writes;
+    }
+
+    public synchronized long getCompactionCount()
+    {
+        return compactions;
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * One append-only segment file. Windows of the file are mapped once they are completely
+     * written, so appending never remaps the file. Records in the last window or across the
+     * end of a window are read into the heap. The mappings are released when the segment is
+     * closed, so that its file can be deleted.
+     */
+    private static class Segment {
+
+        private final int number;
+        private final File file;
+        private final FileChannel channel;
+
+        //window number -> mapping of the window
+        private final Map<Integer, MappedByteBuffer> windows = new HashMap<Integer, MappedByteBuffer>();
+
+        private Segment(int number, File file) throws IOException
+        {
+            this.number = number;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        private long getLength()
+        {
+            try
+            {
+                return channel.size();
+            }
+            catch (IOException e)
+            {
+                return 0;
+            }
+        }
+
+        /**
+         * @return the bytes at a position of the segment, must not be used after the segment was closed
+         * */
+        private ByteBuffer read(int offset, int length) throws IOException
+        {
+            int window = offset/WINDOW_SIZE;
+            if (length>0&&(offset+length-1)/WINDOW_SIZE==window&&(long) (window+1)*WINDOW_SIZE<=channel.size())
+            {
+                MappedByteBuffer mapped = windows.get(window);
+                if (mapped==null)
+                {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, (long) window*WINDOW_SIZE, WINDOW_SIZE);
+                    windows.put(window, mapped);
+                }
+                return slice(mapped, offset-window*WINDOW_SIZE, length);
+            }
+
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            while (copy.hasRemaining())
+            {
+                if (channel.read(copy, offset+copy.position())<0)
+                {
+                    throw new EOFException("Avatar segment "+file+" ends at "+channel.size());
+                }
+            }
+            copy.flip();
+            return copy;
+        }
+
+        private void unmap()
+        {
+            for (MappedByteBuffer mapped : windows.values())
+            {
+                AvatarSegmentStore.unmap(mapped);
+            }
+            windows.clear();
+        }
+
+        /**
+         * @return the offset of the appended record
+         * */
+        private long append(ByteBuffer record) throws IOException
+        {
+            long offset = channel.size();
+            channel.position(offset);
+            while (record.hasRemaining())
+            {
+                channel.write(record);
+            }
+            return offset;
+        }
+
+        private void truncate(long length) throws IOException
+        {
+            unmap();
+            channel.truncate(length);
+        }
+
+        private void close()
+        {
+            unmap();
+            try
+            {
+                channel.force(false);
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                Log.warn("Could not close avatar segment "+file+": "+e.getMessage());
+            }
+        }
+
+        private void delete()
+        {
+            close();
+            if (!file.delete())
+            {
+                Log.warn("Could not delete avatar segment "+file);
+            }
+        }
+    }
+
+    /**
+     * release a mapping right away instead of waiting for the garbage collector, a mapped
+     * file can not be deleted on Windows. The store lock guarantees that no slice of the
+     * mapping is in use.
+     * */
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+        }
+        catch (ReflectiveOperationException|RuntimeException e)
+        {
+            Log.debug("Could not unmap avatar segment: "+e.getMessage());
+        }
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Location(Segment segment, int offset, int length)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Owner {
+        private final String hash;
+        private final int recordSize;
+
+        private Owner(String hash, int recordSize)
+        {
+            this.hash = hash;
+            this.recordSize = recordSize;
+        }
+    }
+}
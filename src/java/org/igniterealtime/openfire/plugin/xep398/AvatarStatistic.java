@@ -0,0 +1,111 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.util.function.LongSupplier;
+
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.util.LocaleUtils;
+
+/**
+ * An Openfire statistic backed by one of the {@link AvatarMetrics}. Statistics of type count
+ * report the increase since the last sample, statistics of type amount the current value.
+ * Name, description and units are read from the i18n keys stat.&lt;key&gt;.name/desc/units.
+ */
+public class AvatarStatistic implements Statistic {
+
+    public static final String PRESENCES = "xep398_presences";
+    public static final String CONVERSIONS = "xep398_conversions";
+    public static final String LOADS = "xep398_loads";
+    public static final String BLOBSTORE_SIZE = "xep398_blobstore_size";
+
+    private final String key;
+
+    private final Type type;
+
+    private final LongSupplier source;
+
+    private long last;
+
+    public AvatarStatistic(String key, Type type, LongSupplier source)
+    {
+        this.key = key;
+        this.type = type;
+        this.source = source;
+        this.last = source.getAsLong();
+    }
+
+    @Override
+    public String getName()
+    {
+        return LocaleUtils.getLocalizedString("stat."+key+".name", "xep398");
+    }
+
+    @Override
+    public Type getStatType()
+    {
+        return type;
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return LocaleUtils.getLocalizedString("stat."+key+".desc", "xep398");
+    }
+
+    @Override
+    public String getUnits()
+    {
+        return LocaleUtils.getLocalizedString("stat."+key+".units", "xep398");
+    }
+
+    @Override
+    public synchronized double sample()
+    {
+        long current = source.getAsLong();
+        if (type==Type.amount)
+        {
+            return current;
+        }
+        long delta = current-last;
+        last = current;
+        return Math.max(0, delta);
+    }
+
+    /**
+     * every node only knows its own metrics, the values of all nodes are added up
+     * */
+    @Override
+    public boolean isPartialSample()
+    {
+        return true;
+    }
+
+    /**
+     * register the statistics of the plugin with Openfire
+     * */
+    static void addStatistics()
+    {
+        final AvatarMetrics metrics = AvatarMetrics.getInstance();
+        StatisticsManager manager = StatisticsManager.getInstance();
+        manager.addStatistic(PRESENCES, new AvatarStatistic(PRESENCES, Type.count,
+                () -> metrics.getHistogram(AvatarMetrics.Operation.OUTGOING_PRESENCE).getCount()));
+        manager.addStatistic(CONVERSIONS, new AvatarStatistic(CONVERSIONS, Type.count,
+                () -> metrics.getCount(AvatarMetrics.Counter.CONVERSION_PEP_TO_VCARD)
+                        +metrics.getCount(AvatarMetrics.Counter.CONVERSION_VCARD_TO_PEP)
+                        +metrics.getCount(AvatarMetrics.Counter.CONVERSION_XEP0008_TO_PEP)));
+        manager.addStatistic(LOADS, new AvatarStatistic(LOADS, Type.count,
+                () -> metrics.getHistogram(AvatarMetrics.Operation.LOAD_FROM_PEP).getCount()
+                        +metrics.getHistogram(AvatarMetrics.Operation.LOAD_FROM_VCARD).getCount()));
+        manager.addStatistic(BLOBSTORE_SIZE, new AvatarStatistic(BLOBSTORE_SIZE, Type.amount,
+                metrics::getBlobStoreSize));
+    }
+
+    static void removeStatistics()
+    {
+        StatisticsManager manager = StatisticsManager.getInstance();
+        manager.removeStatistic(PRESENCES);
+        manager.removeStatistic(CONVERSIONS);
+        manager.removeStatistic(LOADS);
+        manager.removeStatistic(BLOBSTORE_SIZE);
+    }
+}
@@ -0,0 +1,150 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * Per thread trace of an avatar operation. While a trace is active, every operation recorded
+ * in the {@link AvatarMetrics} on the same thread is added to it as a stage. When the traced
+ * operation took longer than xmpp.xep0398.trace.threshold, one line with the time spent in
+ * each stage is logged, e.g.
+ * <pre>
+ * Slow avatar operation: trigger=vcard_set jid=user@example.org size=524288 total=2411.3ms image_decode=3.1ms image_shrink=1904.0ms ...
+ * </pre>
+ * A trace object is reused per thread, so an operation below the threshold costs two
+ * timestamps and no allocation. Traces do not nest, the outermost operation owns the trace.
+ */
+public final class AvatarTrace {
+
+    private static final Logger Log = LoggerFactory.getLogger(AvatarTrace.class);
+
+    public enum Trigger { PEP_PUBLISH, VCARD_SET, XEP0008_SET, PRESENCE, VCARD_RESULT }
+
+    private static final ThreadLocal<AvatarTrace> CURRENT = ThreadLocal.withInitial(AvatarTrace::new);
+
+    // 0 disables tracing
+    private static volatile long thresholdNanos = Duration.ofSeconds(1).toNanos();
+
+    private final long[] stages = new long[AvatarMetrics.Operation.values().length];
+
+    private boolean active = false;
+    private Trigger trigger;
+    private JID jid;
+    private int imageSize;
+    private long start;
+
+    private AvatarTrace()
+    {
+    }
+
+    static void setThreshold(Duration threshold)
+    {
+        thresholdNanos = threshold!=null?Math.max(0, threshold.toNanos()):0;
+    }
+
+    /**
+     * start a trace on this thread
+     * @param trigger what caused the operation
+     * @param jid the user the operation is done for
+     * @return true if the trace was started and {@link #end()} has to be called, false if
+     *         tracing is disabled or another operation on this thread is already traced
+     * */
+    public static boolean begin(Trigger trigger, JID jid)
+    {
+        if (thresholdNanos<=0)
+        {
+            return false;
+        }
+        AvatarTrace trace = CURRENT.get();
+        if (trace.active)
+        {
+            return false;
+        }
+        trace.active = true;
+        trace.trigger = trigger;
+        trace.jid = jid;
+        trace.imageSize = -1;
+        Arrays.fill(trace.stages, 0);
+        trace.start = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * end the trace of this thread and log it if it exceeded the threshold
+     * */
+    public static void end()
+    {
+        AvatarTrace trace = CURRENT.get();
+        if (!trace.active)
+        {
+            return;
+        }
+        trace.active = false;
+        long total = System.nanoTime()-trace.start;
+        if (total>=thresholdNanos)
+        {
+            Log.warn(trace.format(total));
+        }
+        trace.jid = null;
+    }
+
+    /**
+     * add the duration of an operation to the trace of this thread, called by {@link AvatarMetrics#record}
+     * */
+    static void stage(AvatarMetrics.Operation operation, long nanos)
+    {
+        if (thresholdNanos<=0)
+        {
+            return;
+        }
+        AvatarTrace trace = CURRENT.get();
+        if (trace.active)
+        {
+            trace.stages[operation.ordinal()] += nanos;
+        }
+    }
+
+    /**
+     * record the size of the image the traced operation works on
+     * */
+    static void imageSize(int bytes)
+    {
+        if (thresholdNanos<=0)
+        {
+            return;
+        }
+        AvatarTrace trace = CURRENT.get();
+        if (trace.active&&trace.imageSize<0)
+        {
+            trace.imageSize = bytes;
+        }
+    }
+
+    private String format(long total)
+    {
+        StringBuilder line = new StringBuilder("Slow avatar operation:");
+        line.append(" trigger=").append(trigger.name().toLowerCase(Locale.ROOT));
+        line.append(" jid=").append(jid!=null?jid.toBareJID():"-");
+        line.append(" size=").append(imageSize>=0?String.valueOf(imageSize):"-");
+        line.append(" total=").append(millis(total));
+        AvatarMetrics.Operation[] operations = AvatarMetrics.Operation.values();
+        for (int i=0;i<stages.length;i++)
+        {
+            if (stages[i]>0)
+            {
+                line.append(' ').append(operations[i].name().toLowerCase(Locale.ROOT)).append('=').append(millis(stages[i]));
+            }
+        }
+        return line.toString();
+    }
+
+    private static String millis(long nanos)
+    {
+        return String.format(Locale.ROOT, "%.1fms", nanos/1000000.0);
+    }
+}
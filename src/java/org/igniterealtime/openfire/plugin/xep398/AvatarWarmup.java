@@ -0,0 +1,232 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.event.SessionEventListener;
+import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * Loads avatars into the hash index and the cache before they are needed, so that the
+ * first presence of a user does not have to wait for PEP or the vCard.
+ * A user is warmed up as soon as their session authenticated. On plugin start, the most
+ * recently active users can be warmed up in the background, one user at a time with a
+ * pause in between, so that the warm-up does not compete with users logging in.
+ */
+public class AvatarWarmup implements SessionEventListener {
+
+    private static final Logger Log = LoggerFactory.getLogger(AvatarWarmup.class);
+
+    // users that went offline most recently first, the offline date is a zero padded string of millis
+    private static final String LOAD_RECENT_USERS = "SELECT username FROM ofPresence ORDER BY offlineDate DESC";
+
+    private final XEP398IQHandler handler;
+
+    private final ConversionExecutor executor;
+
+    private final AtomicLong sessionWarmups = new AtomicLong();
+
+    private volatile boolean running = false;
+    private volatile int startupWarmed = 0;
+    private volatile long startupDuration = 0;
+
+    public AvatarWarmup(XEP398IQHandler handler, ConversionExecutor executor)
+    {
+        this.handler = handler;
+        this.executor = executor;
+    }
+
+    @Override
+    public void sessionCreated(Session session) {
+        final JID user = session.getAddress();
+        if (!XEP398Plugin.XMPP_AVATARCONVERSION_ENABLED.getValue()||user==null||user.getNode()==null)
+        {
+            return;
+        }
+
+        // the session is authenticated on a packet thread, load the avatar on the conversion worker of the user,
+        // skipped during a login storm so that avatar updates still find room in the queue
+        executor.offer(user, () -> {
+            if (handler.warmUp(user))
+            {
+                sessionWarmups.incrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public void sessionDestroyed(Session session) {
+    }
+
+    @Override
+    public void anonymousSessionCreated(Session session) {
+    }
+
+    @Override
+    public void anonymousSessionDestroyed(Session session) {
+    }
+
+    @Override
+    public void resourceBound(Session session) {
+    }
+
+    /**
+     * warm up the most recently active users in the background
+     * @param count the number of users
+     * @param pause the pause between two users
+     * */
+    public void startWarmup(final int count, final Duration pause)
+    {
+        if (count<=0)
+        {
+            return;
+        }
+
+        running = true;
+        TaskEngine.getInstance().submit(() -> {
+            long start = System.currentTimeMillis();
+            int warmed = 0;
+            try
+            {
+                String domain = XMPPServer.getInstance().getServerInfo().getXMPPDomain();
+                for (String username : loadRecentUsers(count))
+                {
+                    if (!running)
+                    {
+                        break;
+                    }
+                    if (handler.warmUp(new JID(username, domain, null)))
+                    {
+                        warmed++;
+                    }
+                    Thread.sleep(pause.toMillis());
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (Exception e)
+            {
+                Log.error("Avatar warm-up failed: "+e.getMessage(), e);
+            }
+            finally
+            {
+                running = false;
+                startupWarmed = warmed;
+                startupDuration = System.currentTimeMillis()-start;
+                Log.info("Avatar warm-up loaded "+warmed+" avatars in "+startupDuration+" ms");
+            }
+        });
+    }
+
+    /**
+     * warm up a number of users in the background, one user at a time with a pause in between
+     * @param users the users
+     * @param pause the pause between two users
+     * */
+    public void warmUp(final Collection<JID> users, final Duration pause)
+    {
+        final List<JID> pending = new ArrayList<JID>(users);
+        TaskEngine.getInstance().submit(() -> {
+            int warmed = 0;
+            try
+            {
+                for (JID user : pending)
+                {
+                    if (handler.warmUp(user))
+                    {
+                        warmed++;
+                    }
+                    Thread.sleep(pause.toMillis());
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (Exception e)
+            {
+                Log.error("Avatar warm-up failed: "+e.getMessage(), e);
+            }
+            finally
+            {
+                Log.info("Avatar warm-up of "+pending.size()+" users loaded "+warmed+" avatars");
+            }
+        });
+    }
+
+    /**
+     * stop a running startup warm-up after the current user
+     * */
+    public void stop()
+    {
+        running = false;
+    }
+
+    private static List<String> loadRecentUsers(int count) throws SQLException
+    {
+        List<String> users = new ArrayList<String>();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(LOAD_RECENT_USERS);
+            pstmt.setMaxRows(count);
+            rs = pstmt.executeQuery();
+            while (rs.next())
+            {
+                users.add(rs.getString(1));
+            }
+        }
+        finally
+        {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        return users;
+    }
+
+    /**
+     * @return the number of users warmed up after their session authenticated
+     * */
+    public long getSessionWarmups()
+    {
+        return sessionWarmups.get();
+    }
+
+    /**
+     * @return the number of avatars loaded by the startup warm-up
+     * */
+    public int getStartupWarmed()
+    {
+        return startupWarmed;
+    }
+
+    /**
+     * @return the duration of the startup warm-up in millis
+     * */
+    public long getStartupDuration()
+    {
+        return startupDuration;
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+}
@@ -0,0 +1,309 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * Runs avatar conversions (image processing, PEP and vCard writes, presence broadcasts)
+ * outside of the packet processing threads of Openfire.
+ * Every worker owns a bounded queue and all work of one user is always queued to the
+ * same worker, so the conversions of a user are executed in the order they were received.
+ * If the queue of a worker is full, the task is counted as rejected and dropped, it never
+ * runs on the calling thread.
+ * Updates of a user that arrive within the coalescing window are collapsed, only the
+ * latest one is executed once the window has passed. A rejected update stays pending and
+ * is queued again after a pause, later updates of the user replace it meanwhile.
+ * Optional work like warm-ups is only offered; it is skipped once a queue is half full,
+ * so that it never takes the room needed for avatar updates.
+ */
+public class ConversionExecutor {
+
+    private static final Logger Log = LoggerFactory.getLogger(ConversionExecutor.class);
+
+    //pause before a rejected update is queued again
+    private static final long RETRY_DELAY = 1000;
+
+    //a full queue is logged at most once per interval
+    private static final long REJECTION_LOG_INTERVAL = 60000;
+
+    private final ThreadPoolExecutor[] workers;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong lastRejectionLog = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    //bare jid -> latest update waiting for the end of its coalescing window
+    private final Map<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    public ConversionExecutor(int workerCount, int queueCapacity)
+    {
+        workerCount = Math.max(1, workerCount);
+        int capacityPerWorker = Math.max(1, queueCapacity/workerCount);
+
+        NamedThreadFactory threadFactory = new NamedThreadFactory("xep398-conversion-", true, null, null, null);
+        this.workers = new ThreadPoolExecutor[workerCount];
+        for (int i=0;i<workerCount;i++)
+        {
+            this.workers[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(capacityPerWorker), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("xep398-coalescing-", true, null, null, null));
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * queue an avatar update of a user, replacing an update of the same user that is still
+     * waiting for the end of its coalescing window
+     * @param user the user whose avatar is updated
+     * @param task the update, must read the current state of the user when executed
+     * @param window the coalescing window, zero or negative to queue the update immediately
+     * */
+    public void executeCoalesced(final JID user, final Runnable task, Duration window)
+    {
+        if (scheduler.isShutdown())
+        {
+            execute(user, task);
+            return;
+        }
+
+        final boolean immediate = window==null||window.isZero()||window.isNegative();
+        final String key = user.toBareJID();
+        pending.compute(key, (k, waiting) -> {
+            if (waiting!=null)
+            {
+                waiting.task = task;
+                coalesced.incrementAndGet();
+                return waiting;
+            }
+            if (immediate&&execute(user, task))
+            {
+                return null;
+            }
+            if (!schedule(key, immediate?RETRY_DELAY:window.toMillis()))
+            {
+                // the executor is shutting down
+                if (!immediate)
+                {
+                    execute(user, task);
+                }
+                return null;
+            }
+            return new Pending(user, task);
+        });
+    }
+
+    /**
+     * queue the pending update of a user, it stays pending and is retried if the queue is full.
+     * The update is queued while the entry is locked, so a later update can not overtake it.
+     * */
+    private void flush(String key)
+    {
+        pending.computeIfPresent(key, (k, waiting) -> {
+            if (execute(waiting.user, waiting.task)||!schedule(key, RETRY_DELAY))
+            {
+                return null;
+            }
+            return waiting;
+        });
+    }
+
+    /**
+     * @return false if the scheduler is shut down
+     * */
+    private boolean schedule(String key, long delay)
+    {
+        try
+        {
+            scheduler.schedule(() -> flush(key), delay, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * queue a conversion of a user, the conversion is dropped if the queue of the worker is full
+     * @param user the user whose avatar is converted, defines the worker
+     * @param task the conversion
+     * @return true if the conversion was queued, false if it was rejected
+     * */
+    public boolean execute(JID user, final Runnable task)
+    {
+        try
+        {
+            worker(user).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try
+                    {
+                        task.run();
+                    }
+                    catch (Exception e)
+                    {
+                        Log.error("Avatar conversion of "+user.toBareJID()+" failed: "+e.getMessage(), e);
+                    }
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            rejected.incrementAndGet();
+            logRejection();
+            return false;
+        }
+    }
+
+    /**
+     * queue optional work of a user, like a warm-up, only if the queue of the worker is less than half full
+     * @param user the user, defines the worker
+     * @param task the work
+     * @return true if the work was queued, false if it was skipped
+     * */
+    public boolean offer(JID user, Runnable task)
+    {
+        BlockingQueue<Runnable> queue = worker(user).getQueue();
+        if (queue.size()>=queue.remainingCapacity())
+        {
+            skipped.incrementAndGet();
+            return false;
+        }
+        return execute(user, task);
+    }
+
+    private ThreadPoolExecutor worker(JID user)
+    {
+        return workers[(user.toBareJID().hashCode() & Integer.MAX_VALUE) % workers.length];
+    }
+
+    private void logRejection()
+    {
+        long now = System.currentTimeMillis();
+        long last = lastRejectionLog.get();
+        if (now-last>=REJECTION_LOG_INTERVAL&&lastRejectionLog.compareAndSet(last, now))
+        {
+            Log.warn("Conversion queue is full, "+rejected.get()+" conversions rejected since the plugin started");
+        }
+    }
+
+    /**
+     * @return the number of conversions waiting in the queues of all workers
+     * */
+    public int getQueueDepth()
+    {
+        int depth = 0;
+        for (ThreadPoolExecutor worker : workers)
+        {
+            depth += worker.getQueue().size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the number of times a conversion did not fit into a queue, a retried update is counted on every attempt
+     * */
+    public long getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of updates that were replaced by a later update of the same user
+     * */
+    public long getCoalescedCount()
+    {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of offered tasks that were skipped because the queue of their worker was half full
+     * */
+    public long getSkippedCount()
+    {
+        return skipped.get();
+    }
+
+    /**
+     * @return the number of users with an update waiting for the end of its coalescing window
+     * */
+    public int getPendingCount()
+    {
+        return pending.size();
+    }
+
+    public long getCompletedCount()
+    {
+        long completed = 0;
+        for (ThreadPoolExecutor worker : workers)
+        {
+            completed += worker.getCompletedTaskCount();
+        }
+        return completed;
+    }
+
+    public int getWorkerCount()
+    {
+        return workers.length;
+    }
+
+    public void shutdown()
+    {
+        scheduler.shutdownNow();
+        for (String key : pending.keySet())
+        {
+            flush(key);
+        }
+
+        for (ThreadPoolExecutor worker : workers)
+        {
+            worker.shutdown();
+        }
+        for (ThreadPoolExecutor worker : workers)
+        {
+            try
+            {
+                if (!worker.awaitTermination(10, TimeUnit.SECONDS))
+                {
+                    worker.shutdownNow();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                worker.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Pending {
+        private final JID user;
+        private volatile Runnable task;
+
+        private Pending(JID user, Runnable task)
+        {
+            this.user = user;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Determines type and dimensions of an image by reading its header only.
+ * PNG (IHDR), JPEG (SOFn), GIF (logical screen descriptor) and WebP (VP8, VP8L, VP8X)
+ * are parsed directly, other formats are asked for their dimensions through an
+ * {@link ImageReader} without reading any pixels. Data that no reader recognizes is rejected.
+ */
+public final class ImageProbe {
+
+    private static final Logger Log = LoggerFactory.getLogger(ImageProbe.class);
+
+    //larger dimensions are considered to be a broken header
+    private static final int MAX_DIMENSION = 65535;
+
+    private static final byte[] PNG_SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    private ImageProbe() {
+    }
+
+    /**
+     * probe an image
+     * @param image the raw image bytes
+     * @return the header information or null if the data is not a known image format or the header is truncated or inconsistent
+     * */
+    public static Info probe(byte[] image)
+    {
+        if (image==null||image.length==0)
+        {
+            return null;
+        }
+
+        try {
+            if (startsWith(image, PNG_SIGNATURE))
+            {
+                return probePNG(image);
+            }
+            if (image.length>=2&&(image[0]&0xff)==0xff&&(image[1]&0xff)==0xd8)
+            {
+                return probeJPEG(image);
+            }
+            if (startsWith(image, "GIF87a".getBytes())||startsWith(image, "GIF89a".getBytes()))
+            {
+                return probeGIF(image);
+            }
+            if (startsWith(image, "RIFF".getBytes())&&image.length>=12&&matches(image, 8, "WEBP"))
+            {
+                return probeWebP(image);
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e)
+        {
+            Log.debug("probe: truncated image header");
+            return null;
+        }
+
+        return probeWithReader(image);
+    }
+
+    private static Info probePNG(byte[] image)
+    {
+        // signature, chunk length, "IHDR", width, height
+        if (image.length<24||readIntBE(image, 8)!=13||!matches(image, 12, "IHDR"))
+        {
+            Log.debug("probe: PNG without valid IHDR chunk");
+            return null;
+        }
+        return checked("image/png", readIntBE(image, 16), readIntBE(image, 20), image.length);
+    }
+
+    private static Info probeJPEG(byte[] image)
+    {
+        int pos = 2;
+        while (pos+4<=image.length)
+        {
+            if ((image[pos]&0xff)!=0xff)
+            {
+                Log.debug("probe: JPEG marker expected at {}", pos);
+                return null;
+            }
+            int marker = image[pos+1]&0xff;
+            if (marker==0xff)
+            {
+                //fill byte
+                pos++;
+                continue;
+            }
+            if (marker==0x01||(marker>=0xd0&&marker<=0xd7))
+            {
+                //standalone markers without length
+                pos+=2;
+                continue;
+            }
+            if (marker==0xd9||marker==0xda)
+            {
+                //end of image or start of scan before any frame header
+                break;
+            }
+
+            int length = readShortBE(image, pos+2);
+            if (length<2)
+            {
+                return null;
+            }
+            if (marker>=0xc0&&marker<=0xcf&&marker!=0xc4&&marker!=0xc8&&marker!=0xcc)
+            {
+                // SOFn: length, precision, height, width
+                if (length<7||pos+9>image.length)
+                {
+                    return null;
+                }
+                return checked("image/jpeg", readShortBE(image, pos+7), readShortBE(image, pos+5), image.length);
+            }
+            pos+=2+length;
+        }
+        Log.debug("probe: JPEG without frame header");
+        return null;
+    }
+
+    private static Info probeGIF(byte[] image)
+    {
+        if (image.length<10)
+        {
+            return null;
+        }
+        return checked("image/gif", readShortLE(image, 6), readShortLE(image, 8), image.length);
+    }
+
+    private static Info probeWebP(byte[] image)
+    {
+        // RIFF size counts everything after the size field
+        long riffSize = readIntLE(image, 4)&0xffffffffL;
+        if (riffSize+8>image.length||image.length<30)
+        {
+            Log.debug("probe: truncated WebP");
+            return null;
+        }
+
+        if (matches(image, 12, "VP8 "))
+        {
+            //frame tag (3 bytes), start code 9d 01 2a, 14 bit width and height
+            if ((image[23]&0xff)!=0x9d||(image[24]&0xff)!=0x01||(image[25]&0xff)!=0x2a)
+            {
+                return null;
+            }
+            return checked("image/webp", readShortLE(image, 26)&0x3fff, readShortLE(image, 28)&0x3fff, image.length);
+        }
+        if (matches(image, 12, "VP8L"))
+        {
+            //signature 0x2f, then width-1 and height-1 with 14 bits each
+            if ((image[20]&0xff)!=0x2f)
+            {
+                return null;
+            }
+            int bits = readIntLE(image, 21);
+            return checked("image/webp", (bits&0x3fff)+1, ((bits>>14)&0x3fff)+1, image.length);
+        }
+        if (matches(image, 12, "VP8X"))
+        {
+            //flags (4 bytes), canvas width-1 and height-1 with 24 bits each
+            int width = (image[24]&0xff)|((image[25]&0xff)<<8)|((image[26]&0xff)<<16);
+            int height = (image[27]&0xff)|((image[28]&0xff)<<8)|((image[29]&0xff)<<16);
+            return checked("image/webp", width+1, height+1, image.length);
+        }
+        Log.debug("probe: unknown WebP chunk");
+        return null;
+    }
+
+    /**
+     * ask an ImageReader for the dimensions, this only reads the header of the image
+     * */
+    private static Info probeWithReader(byte[] image)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(image)))
+            {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext())
+                {
+                    Log.debug("probe: unknown image format");
+                    return null;
+                }
+                ImageReader reader = readers.next();
+                try
+                {
+                    reader.setInput(in, true, true);
+                    String[] types = reader.getOriginatingProvider().getMIMETypes();
+                    String type = types!=null&&types.length>0?types[0]:null;
+                    return checked(type, reader.getWidth(0), reader.getHeight(0), image.length);
+                }
+                finally
+                {
+                    reader.dispose();
+                }
+            }
+            catch (IOException|RuntimeException e)
+            {
+                // ImageReaders of broken or hostile data do not only throw IOExceptions
+                Log.debug("probe: could not read image header: "+e.getMessage());
+                return null;
+            }
+        }
+        finally
+        {
+            AvatarMetrics.record(AvatarMetrics.Operation.IMAGE_READER, start);
+        }
+    }
+
+    private static Info checked(String type, int width, int height, int length)
+    {
+        if (width<=0||height<=0||width>MAX_DIMENSION||height>MAX_DIMENSION)
+        {
+            Log.debug("probe: inconsistent dimensions {}x{} for {}", width, height, type);
+            return null;
+        }
+        return new Info(type, width, height, length);
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix)
+    {
+        if (data.length<prefix.length)
+        {
+            return false;
+        }
+        for (int i=0;i<prefix.length;i++)
+        {
+            if (data[i]!=prefix[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(byte[] data, int offset, String ascii)
+    {
+        for (int i=0;i<ascii.length();i++)
+        {
+            if (data[offset+i]!=(byte)ascii.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readIntBE(byte[] data, int offset)
+    {
+        return ((data[offset]&0xff)<<24)|((data[offset+1]&0xff)<<16)|((data[offset+2]&0xff)<<8)|(data[offset+3]&0xff);
+    }
+
+    private static int readIntLE(byte[] data, int offset)
+    {
+        return (data[offset]&0xff)|((data[offset+1]&0xff)<<8)|((data[offset+2]&0xff)<<16)|((data[offset+3]&0xff)<<24);
+    }
+
+    private static int readShortBE(byte[] data, int offset)
+    {
+        return ((data[offset]&0xff)<<8)|(data[offset+1]&0xff);
+    }
+
+    private static int readShortLE(byte[] data, int offset)
+    {
+        return (data[offset]&0xff)|((data[offset+1]&0xff)<<8);
+    }
+
+    /**
+     * Header information of an image.
+     */
+    public static final class Info {
+
+        private final String type;
+        private final int width;
+        private final int height;
+        private final int length;
+
+        private Info(String type, int width, int height, int length)
+        {
+            this.type = type;
+            this.width = width;
+            this.height = height;
+            this.length = length;
+        }
+
+        /**
+         * @return the detected mime type or null if the format is unknown
+         * */
+        public String getType() {
+            return type;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+}
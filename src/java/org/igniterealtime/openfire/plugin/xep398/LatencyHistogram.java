@@ -0,0 +1,123 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of durations in nanoseconds. Every power of two is split into eight
+ * buckets, so percentiles are accurate to 12.5% with a fixed memory footprint of 4 KB.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 8;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64*SUB_BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder total = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos)
+    {
+        if (nanos<0)
+        {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucket(nanos));
+        count.increment();
+        total.add(nanos);
+
+        long current;
+        while (nanos>(current=max.get())&&!max.compareAndSet(current, nanos))
+        {
+        }
+    }
+
+    private static int bucket(long nanos)
+    {
+        if (nanos<SUB_BUCKETS)
+        {
+            return (int) nanos;
+        }
+        int exponent = 63-Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos>>>(exponent-3))&(SUB_BUCKETS-1);
+        return (exponent-2)*SUB_BUCKETS+sub;
+    }
+
+    /**
+     * @return the largest duration that falls into a bucket
+     * */
+    private static long upperBound(int bucket)
+    {
+        if (bucket<SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int exponent = bucket/SUB_BUCKETS+2;
+        int sub = bucket%SUB_BUCKETS;
+        return ((SUB_BUCKETS+sub+1L)<<(exponent-3))-1;
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of all durations in nanos
+     * */
+    public long getTotal()
+    {
+        return total.sum();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound of the bucket of the percentile in nanos, 0 if nothing was recorded
+     * */
+    public long getPercentile(double percentile)
+    {
+        long[] snapshot = new long[buckets.length()];
+        long recorded = 0;
+        for (int i=0;i<snapshot.length;i++)
+        {
+            snapshot[i] = buckets.get(i);
+            recorded += snapshot[i];
+        }
+        if (recorded==0)
+        {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(recorded*percentile/100.0));
+        long seen = 0;
+        for (int i=0;i<snapshot.length;i++)
+        {
+            seen += snapshot[i];
+            if (seen>=rank)
+            {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset()
+    {
+        for (int i=0;i<buckets.length();i++)
+        {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.set(0);
+    }
+}
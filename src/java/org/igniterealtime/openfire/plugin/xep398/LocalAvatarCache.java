@@ -0,0 +1,295 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.util.cache.CacheSizes;
+
+/**
+ * Node local cache of parsed avatar cache entries in front of the clustered XEP398v2 cache.
+ * Entries are weighted by their size. If the cache is full, a new entry only replaces the
+ * least recently used entries if it was asked for more often than each of them, so that a
+ * burst of one-time lookups does not flush the avatars of active users. How often a key
+ * was asked for is estimated with a small count-min sketch that is halved from time to time.
+ * Every put or remove of a key advances its generation; an entry read from the clustered
+ * cache is only added with {@link #putIfGeneration} if no change happened in between, so a
+ * reader can not bring back a value that was invalidated while it was fetching it.
+ */
+public class LocalAvatarCache {
+
+    //key -> entry, in access order
+    private final LinkedHashMap<String, Node> entries = new LinkedHashMap<String, Node>(16, 0.75f, true);
+
+    private final FrequencySketch sketch = new FrequencySketch(4096);
+
+    //generations of the keys, by hash of the key
+    private final long[] generations = new long[256];
+
+    private long maxSize;
+    private long size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long rejections = 0;
+
+    public LocalAvatarCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param key the bare jid
+     * @param maxLifetime entries older than this are dropped, in millis, 0 or less for no limit
+     * @return the entry or null
+     * */
+    public synchronized AvatarCacheEntry get(String key, long maxLifetime)
+    {
+        sketch.increment(key);
+        Node node = entries.get(key);
+        if (node!=null&&maxLifetime>0&&System.currentTimeMillis()-node.created>maxLifetime)
+        {
+            unlink(key);
+            node = null;
+        }
+        if (node==null)
+        {
+            misses++;
+            return null;
+        }
+        hits++;
+        return node.entry;
+    }
+
+    public synchronized void put(String key, AvatarCacheEntry entry)
+    {
+        generations[slot(key)]++;
+        add(key, entry);
+    }
+
+    /**
+     * add an entry that was read from the clustered cache, unless the key was changed since the generation was read
+     * @param generation the result of {@link #getGeneration} before the entry was read
+     * @return false if the entry was outdated
+     * */
+    public synchronized boolean putIfGeneration(String key, AvatarCacheEntry entry, long generation)
+    {
+        if (generations[slot(key)]!=generation)
+        {
+            return false;
+        }
+        add(key, entry);
+        return true;
+    }
+
+    /**
+     * @return the current generation of a key, to be passed to {@link #putIfGeneration}
+     * */
+    public synchronized long getGeneration(String key)
+    {
+        return generations[slot(key)];
+    }
+
+    private void add(String key, AvatarCacheEntry entry)
+    {
+        unlink(key);
+
+        int weight = CacheSizes.sizeOfString(key)+entry.getCachedSize();
+        if (weight>maxSize)
+        {
+            rejections++;
+            return;
+        }
+
+        if (size+weight>maxSize)
+        {
+            int frequency = sketch.frequency(key);
+            List<String> victims = new ArrayList<String>();
+            long freed = 0;
+            Iterator<Map.Entry<String, Node>> it = entries.entrySet().iterator();
+            while (size-freed+weight>maxSize&&it.hasNext())
+            {
+                Map.Entry<String, Node> victim = it.next();
+                if (sketch.frequency(victim.getKey())>frequency)
+                {
+                    rejections++;
+                    return;
+                }
+                victims.add(victim.getKey());
+                freed += victim.getValue().weight;
+            }
+            for (String victim : victims)
+            {
+                unlink(victim);
+                evictions++;
+            }
+        }
+
+        entries.put(key, new Node(entry, weight));
+        size += weight;
+    }
+
+    public synchronized void remove(String key)
+    {
+        generations[slot(key)]++;
+        unlink(key);
+    }
+
+    private void unlink(String key)
+    {
+        Node node = entries.remove(key);
+        if (node!=null)
+        {
+            size -= node.weight;
+        }
+    }
+
+    public synchronized void clear()
+    {
+        for (int i=0;i<generations.length;i++)
+        {
+            generations[i]++;
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    public synchronized void setMaxSize(long maxSize)
+    {
+        this.maxSize = maxSize;
+        Iterator<Node> it = entries.values().iterator();
+        while (size>maxSize&&it.hasNext())
+        {
+            size -= it.next().weight;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    public synchronized long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * @return the number of entries that were not admitted because the entries they would have replaced were used more often
+     * */
+    public synchronized long getRejections()
+    {
+        return rejections;
+    }
+
+    private int slot(String key)
+    {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (generations.length-1);
+    }
+
+    private static class Node {
+        private final AvatarCacheEntry entry;
+        private final int weight;
+        private final long created = System.currentTimeMillis();
+
+        private Node(AvatarCacheEntry entry, int weight)
+        {
+            this.entry = entry;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Count-min sketch with four rows of 4 bit counters (stored in bytes). All counters are
+     * halved after ten times its width increments, so that old popularity fades.
+     */
+    private static class FrequencySketch {
+
+        private static final int[] SEEDS = { 0x97cb3127, 0xb8b6b3ad, 0x7f4a7c15, 0x2c1b3c6d };
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int resetAfter;
+        private int additions = 0;
+
+        private FrequencySketch(int width)
+        {
+            width = Integer.highestOneBit(Math.max(16, width));
+            this.counters = new byte[SEEDS.length][width];
+            this.mask = width-1;
+            this.resetAfter = width*10;
+        }
+
+        private void increment(String key)
+        {
+            int hash = key.hashCode();
+            for (int row=0;row<SEEDS.length;row++)
+            {
+                int index = index(hash, row);
+                if (counters[row][index]<15)
+                {
+                    counters[row][index]++;
+                }
+            }
+            if (++additions>=resetAfter)
+            {
+                reset();
+            }
+        }
+
+        private int frequency(String key)
+        {
+            int hash = key.hashCode();
+            int frequency = Integer.MAX_VALUE;
+            for (int row=0;row<SEEDS.length;row++)
+            {
+                frequency = Math.min(frequency, counters[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row)
+        {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private void reset()
+        {
+            for (byte[] row : counters)
+            {
+                for (int i=0;i<row.length;i++)
+                {
+                    row[i] = (byte) (row[i] >>> 1);
+                }
+            }
+            additions = 0;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.util.cache.Cache;
+import org.xmpp.packet.JID;
+
+/**
+ * Remembers users that have neither a PEP nor a vCard avatar, so that the PEP and vCard
+ * lookups are not repeated for every presence of these users. Size and lifetime of the
+ * entries are bounded by cache.XEP398Negative.size and cache.XEP398Negative.maxLifetime.
+ */
+public class NegativeAvatarCache {
+
+    private final Cache<String, Boolean> cache;
+
+    private final AtomicLong savedLookups = new AtomicLong();
+
+    public NegativeAvatarCache(Cache<String, Boolean> cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * check whether a user is known to have no avatar
+     * @param user the user
+     * @return true if the lookup can be skipped
+     * */
+    public boolean isKnownMissing(JID user)
+    {
+        if (cache.get(user.toBareJID())!=null)
+        {
+            savedLookups.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public void markMissing(JID user)
+    {
+        cache.put(user.toBareJID(), Boolean.TRUE);
+    }
+
+    public void invalidate(JID user)
+    {
+        cache.remove(user.toBareJID());
+    }
+
+    public void clear()
+    {
+        cache.clear();
+    }
+
+    public int size()
+    {
+        return cache.size();
+    }
+
+    /**
+     * @return the number of PEP and vCard lookups that were skipped since the plugin started
+     * */
+    public long getSavedLookups()
+    {
+        return savedLookups.get();
+    }
+}
@@ -0,0 +1,369 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out chunks of memory outside of the Java heap, so that avatar images do not end up
+ * as large (humongous) arrays on the heap.
+ * The memory is reserved in slabs of direct buffers. A slab is cut into chunks of one size
+ * class (powers of two from 1 KB up to the slab size), a chunk holds one image. Once all
+ * chunks of a slab are free again, the slab goes back to a pool and is reused for any
+ * size class. Images that are larger than a slab get a direct buffer of their own, which
+ * is released right away when it is freed. Direct memory that is only dropped is returned
+ * at the next garbage collection, so slabs are kept or released explicitly to keep the
+ * actual usage within the budget. If the JVM runs out of direct memory, the allocation
+ * fails like an exhausted budget; the caller has to free chunks first.
+ * The allocator is not thread safe, the caller has to synchronize.
+ */
+public class OffHeapSlabAllocator {
+
+    private static final Logger Log = LoggerFactory.getLogger(OffHeapSlabAllocator.class);
+
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    private final int slabSize;
+
+    private long budget;
+
+    //size class -> slabs of this class with at least one free chunk
+    private final List<Deque<Slab>> partial = new ArrayList<Deque<Slab>>();
+
+    //empty slabs kept for reuse
+    private final Deque<Slab> empty = new ArrayDeque<Slab>();
+
+    private int slabCount = 0;
+    private long largeSize = 0;
+    private long used = 0;
+
+    public OffHeapSlabAllocator(int slabSize, long budget)
+    {
+        this.slabSize = Integer.highestOneBit(Math.max(MIN_CHUNK_SIZE, slabSize));
+        this.budget = budget;
+        for (int chunkSize = MIN_CHUNK_SIZE; chunkSize<=this.slabSize; chunkSize <<= 1)
+        {
+            partial.add(new ArrayDeque<Slab>());
+        }
+    }
+
+    /**
+     * copy data into off-heap memory
+     * @param data the data
+     * @return the chunk holding the data or null if the budget is exhausted
+     * */
+    public Chunk allocate(byte[] data)
+    {
+        Chunk chunk = data.length>slabSize?allocateLarge(data.length):allocateChunk(data.length);
+        if (chunk!=null)
+        {
+            ByteBuffer target = chunk.view();
+            target.put(data);
+            used += data.length;
+        }
+        return chunk;
+    }
+
+    private Chunk allocateLarge(int length)
+    {
+        if (getReservedSize()+length>budget)
+        {
+            return null;
+        }
+        ByteBuffer buffer = allocateDirect(length);
+        if (buffer==null)
+        {
+            return null;
+        }
+        largeSize += length;
+        return new Chunk(null, 0, buffer, length);
+    }
+
+    private Chunk allocateChunk(int length)
+    {
+        int sizeClass = sizeClass(length);
+        Deque<Slab> slabs = partial.get(sizeClass);
+        Slab slab = slabs.peekFirst();
+        if (slab==null)
+        {
+            slab = empty.pollFirst();
+            if (slab==null)
+            {
+                if (getReservedSize()+slabSize>budget)
+                {
+                    return null;
+                }
+                ByteBuffer buffer = allocateDirect(slabSize);
+                if (buffer==null)
+                {
+                    return null;
+                }
+                slab = new Slab(buffer);
+                slabCount++;
+            }
+            slab.assign(MIN_CHUNK_SIZE << sizeClass);
+            slabs.addFirst(slab);
+        }
+
+        int index = slab.take();
+        if (!slab.hasFree())
+        {
+            slabs.removeFirst();
+        }
+        ByteBuffer view = slab.buffer.duplicate();
+        view.position(index*slab.chunkSize);
+        view.limit(index*slab.chunkSize+length);
+        return new Chunk(slab, index, view.slice(), length);
+    }
+
+    /**
+     * give the memory of a chunk back, the chunk must not be used afterwards
+     * */
+    public void free(Chunk chunk)
+    {
+        used -= chunk.length;
+        if (chunk.slab==null)
+        {
+            largeSize -= chunk.length;
+            release(chunk.buffer);
+            return;
+        }
+
+        Slab slab = chunk.slab;
+        Deque<Slab> slabs = partial.get(sizeClass(slab.chunkSize));
+        boolean wasFull = !slab.hasFree();
+        slab.give(chunk.index);
+        if (slab.isEmpty())
+        {
+            slabs.remove(slab);
+            slab.assign(0);
+            empty.addFirst(slab);
+            trim();
+        }
+        else if (wasFull)
+        {
+            slabs.addLast(slab);
+        }
+    }
+
+    /**
+     * @return the size of the chunk that would hold data of a length, the length itself for data larger than a slab
+     * */
+    public int getChunkSize(int length)
+    {
+        return length>slabSize?length:MIN_CHUNK_SIZE << sizeClass(length);
+    }
+
+    private static int sizeClass(int length)
+    {
+        int chunkSize = MIN_CHUNK_SIZE;
+        int sizeClass = 0;
+        while (chunkSize<length)
+        {
+            chunkSize <<= 1;
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * release all memory, all chunks become invalid
+     * */
+    public void clear()
+    {
+        for (Deque<Slab> slabs : partial)
+        {
+            slabs.clear();
+        }
+        // chunks of the other slabs may still be read by the caller, they are left to the garbage collector
+        for (Slab slab : empty)
+        {
+            release(slab.buffer);
+        }
+        empty.clear();
+        slabCount = 0;
+        largeSize = 0;
+        used = 0;
+    }
+
+    public void setBudget(long budget)
+    {
+        this.budget = budget;
+        trim();
+    }
+
+    /**
+     * release pooled slabs while more memory is reserved than the budget allows
+     * */
+    private void trim()
+    {
+        while (getReservedSize()>budget&&!empty.isEmpty())
+        {
+            release(empty.pollFirst().buffer);
+            slabCount--;
+        }
+    }
+
+    private static ByteBuffer allocateDirect(int length)
+    {
+        try
+        {
+            return ByteBuffer.allocateDirect(length);
+        }
+        catch (OutOfMemoryError e)
+        {
+            Log.warn("Could not reserve "+length+" bytes of direct memory for avatars: "+e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * give the memory of a direct buffer back right away instead of waiting for the garbage
+     * collector, no chunk of the buffer may be in use
+     * */
+    private static void release(ByteBuffer buffer)
+    {
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+        }
+        catch (ReflectiveOperationException|RuntimeException e)
+        {
+            Log.debug("Could not release direct buffer: "+e.getMessage());
+        }
+    }
+
+    public long getBudget()
+    {
+        return budget;
+    }
+
+    /**
+     * @return the number of bytes of direct memory reserved by slabs and large images
+     * */
+    public long getReservedSize()
+    {
+        return (long) slabCount*slabSize+largeSize;
+    }
+
+    /**
+     * @return the number of bytes of the stored data
+     * */
+    public long getUsedSize()
+    {
+        return used;
+    }
+
+    public int getSlabCount()
+    {
+        return slabCount;
+    }
+
+    public int getSlabSize()
+    {
+        return slabSize;
+    }
+
+    /**
+     * A piece of off-heap memory holding one image.
+     */
+    public static class Chunk {
+
+        private final Slab slab;
+        private final int index;
+        private final ByteBuffer buffer;
+        private final int length;
+
+        private Chunk(Slab slab, int index, ByteBuffer buffer, int length)
+        {
+            this.slab = slab;
+            this.index = index;
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        private ByteBuffer view()
+        {
+            ByteBuffer view = buffer.duplicate();
+            view.clear();
+            return view;
+        }
+
+        /**
+         * @return a copy of the data on the heap
+         * */
+        public byte[] read()
+        {
+            byte[] data = new byte[length];
+            view().get(data);
+            return data;
+        }
+
+        public int getLength()
+        {
+            return length;
+        }
+
+        /**
+         * @return the size of the chunk, the length for data larger than a slab
+         * */
+        public int getChunkSize()
+        {
+            return slab!=null?slab.chunkSize:length;
+        }
+    }
+
+    private static class Slab {
+
+        private final ByteBuffer buffer;
+        private int chunkSize = 0;
+        private int[] free = new int[0];
+        private int freeCount = 0;
+
+        private Slab(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        private void assign(int chunkSize)
+        {
+            this.chunkSize = chunkSize;
+            int chunks = chunkSize>0?buffer.capacity()/chunkSize:0;
+            this.free = new int[chunks];
+            for (int i=0;i<chunks;i++)
+            {
+                this.free[i] = chunks-1-i;
+            }
+            this.freeCount = chunks;
+        }
+
+        private int take()
+        {
+            return free[--freeCount];
+        }
+
+        private void give(int index)
+        {
+            free[freeCount++] = index;
+        }
+
+        private boolean hasFree()
+        {
+            return freeCount>0;
+        }
+
+        private boolean isEmpty()
+        {
+            return freeCount==free.length;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Makes sure that only one thread loads the value of a key at a time. Threads asking for a
+ * key that is already being loaded wait for the result of the loading thread instead of
+ * loading it again. If the result does not arrive in time, the waiting thread loads the
+ * value on its own.
+ */
+public class SingleFlightLoader<V> {
+
+    private static final Logger Log = LoggerFactory.getLogger(SingleFlightLoader.class);
+
+    private final Map<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<String, CompletableFuture<V>>();
+
+    private final AtomicLong sharedLoads = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * load the value of a key
+     * @param key the key, usually a bare jid
+     * @param loader loads the value, may return null
+     * @param timeout how long to wait for a load of another thread
+     * @return the loaded value
+     * @throws CancellationException if the thread was interrupted while waiting for another thread,
+     *          the value is unknown then and must not be taken for a missing one
+     * */
+    public V load(String key, Supplier<V> loader, Duration timeout)
+    {
+        CompletableFuture<V> mine = new CompletableFuture<V>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+        if (running!=null)
+        {
+            try
+            {
+                V result = running.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+                sharedLoads.incrementAndGet();
+                return result;
+            }
+            catch (TimeoutException e)
+            {
+                timeouts.incrementAndGet();
+                Log.debug("Timeout while waiting for the avatar of "+key+", loading it again");
+                return loader.get();
+            }
+            catch (ExecutionException e)
+            {
+                return loader.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for the avatar of "+key);
+            }
+        }
+
+        try
+        {
+            V result = loader.get();
+            mine.complete(result);
+            return result;
+        }
+        catch (RuntimeException e)
+        {
+            mine.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * @return the number of loads that were answered with the result of another thread
+     * */
+    public long getSharedLoads()
+    {
+        return sharedLoads.get();
+    }
+
+    /**
+     * @return the number of threads that stopped waiting for another thread
+     * */
+    public long getTimeouts()
+    {
+        return timeouts.get();
+    }
+
+    public int getInFlightCount()
+    {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,159 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.dom4j.Element;
+
+/**
+ * Prebuilt stanza fragments that carry a base64 encoded avatar, e.g. the PHOTO element of a
+ * vCard result or the data element of a XEP-0008 response. Responses get a copy of the
+ * fragment, the copy shares the base64 text with the cached fragment, so an avatar that is
+ * requested by many contacts is encoded only once.
+ * The key contains the SHA-1 hash of the image, an entry never becomes stale and is only
+ * dropped when the cache is full (least recently used first).
+ * Cached fragments must never be modified, use {@link Element#createCopy()}.
+ */
+public class StanzaFragmentCache {
+
+    // per entry overhead of the elements, attributes and the key
+    private static final int OVERHEAD = 512;
+
+    //key -> fragment, in access order
+    private final LinkedHashMap<String, Fragment> fragments = new LinkedHashMap<String, Fragment>(16, 0.75f, true);
+
+    private long maxSize;
+    private long size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public StanzaFragmentCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param namespace the namespace of the fragment
+     * @param rendition the variant of the image, e.g. full or shrinked
+     * @param hash the SHA-1 hash of the original image
+     * */
+    public static String key(String namespace, String rendition, String hash)
+    {
+        return namespace+'|'+rendition+'|'+hash;
+    }
+
+    /**
+     * @return the cached fragment, which must not be modified, or null
+     * */
+    public synchronized Element get(String key)
+    {
+        Fragment fragment = fragments.get(key);
+        if (fragment==null)
+        {
+            misses++;
+            return null;
+        }
+        hits++;
+        return fragment.element;
+    }
+
+    /**
+     * @param key the key, see {@link #key(String, String, String)}
+     * @param element the fragment, it must not be modified afterwards
+     * @param textLength the length of the base64 text of the fragment
+     * */
+    public synchronized void put(String key, Element element, int textLength)
+    {
+        remove(key);
+
+        int weight = textLength+OVERHEAD;
+        if (weight>maxSize)
+        {
+            return;
+        }
+
+        fragments.put(key, new Fragment(element, weight));
+        size += weight;
+        evict();
+    }
+
+    private void remove(String key)
+    {
+        Fragment fragment = fragments.remove(key);
+        if (fragment!=null)
+        {
+            size -= fragment.weight;
+        }
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<String, Fragment>> it = fragments.entrySet().iterator();
+        while (size>maxSize&&it.hasNext())
+        {
+            size -= it.next().getValue().weight;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void clear()
+    {
+        fragments.clear();
+        size = 0;
+    }
+
+    public synchronized void setMaxSize(long maxSize)
+    {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    public synchronized long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @return the estimated size of all fragments in bytes
+     * */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return fragments.size();
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    private static class Fragment {
+
+        private final Element element;
+        private final int weight;
+
+        private Fragment(Element element, int weight)
+        {
+            this.element = element;
+            this.weight = weight;
+        }
+    }
+}
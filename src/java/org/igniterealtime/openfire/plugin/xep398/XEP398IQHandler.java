@@ -1,17 +1,25 @@
 package org.igniterealtime.openfire.plugin.xep398;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
+import org.dom4j.QName;
 import org.jivesoftware.openfire.IQHandlerInfo;
 import org.jivesoftware.openfire.IQRouter;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.handler.IQHandler;
 import org.jivesoftware.openfire.interceptor.PacketInterceptor;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
@@ -20,12 +28,15 @@ import org.jivesoftware.openfire.pep.PEPServiceManager;
 import org.jivesoftware.openfire.pubsub.DefaultNodeConfiguration;
 import org.jivesoftware.openfire.pubsub.LeafNode;
 import org.jivesoftware.openfire.pubsub.Node;
+import org.jivesoftware.openfire.pubsub.NotAcceptableException;
 import org.jivesoftware.openfire.pubsub.PublishedItem;
 import org.jivesoftware.openfire.session.Session;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xmpp.forms.DataForm;
+import org.xmpp.forms.FormField;
 import org.xmpp.packet.IQ;
 import org.xmpp.packet.IQ.Type;
 import org.xmpp.packet.JID;
@@ -59,6 +70,18 @@ public class XEP398IQHandler implements PacketInterceptor
     private JabberIQAvatarHandler jabberAvatarHandler;
 
     private IQRouter iqRouter;
+
+    //bare jid -> hash stamped into the last inbound presence of that user
+    private final Map<String, String> ingressStamps = new ConcurrentHashMap<String, String>();
+
+    private final AtomicLong unchangedUpdates = new AtomicLong();
+
+    //bare jids of users whose avatar is loaded on their conversion worker after a miss on a packet thread
+    private final Set<String> pendingWarmups = ConcurrentHashMap.newKeySet();
+
+    //only one thread loads the avatar of a user, all others wait for its result
+    private final SingleFlightLoader<Avatar> avatarLoader = new SingleFlightLoader<Avatar>();
+
     //Constructors
     public XEP398IQHandler(XEP398Plugin reference)
     {
@@ -83,10 +106,20 @@ public class XEP398IQHandler implements PacketInterceptor
     }
 
     public PEPService getPEPFromUser(JID userjid)
+    {
+        return getPEPFromUser(userjid, false);
+    }
+
+    /**
+     * @param userjid the user
+     * @param create true to create the PEP service if the user does not have one yet
+     * @return the PEP service of the user or null
+     * */
+    public PEPService getPEPFromUser(JID userjid, boolean create)
     {
         try
         {
-            PEPService pep = pepmgr.getPEPService(userjid);
+            PEPService pep = create?pepmgr.getPEPService(userjid, true):pepmgr.getPEPService(userjid);
             if (pep!=null)
             {
                 Log.debug("PEPService from "+userjid.toBareJID()+" loaded successfully");
@@ -122,7 +155,7 @@ public class XEP398IQHandler implements PacketInterceptor
                 //META
                 if (info.attribute("url")!=null)
                 {
-                    return getAvatar(user);
+                    return timed(AvatarMetrics.Operation.GET_AVATAR, () -> getAvatar(user));
                 }
                 result = new Avatar();
                 result.getMetadata().setHeight(Integer.parseInt(info.attributeValue("height")));
@@ -145,7 +178,13 @@ public class XEP398IQHandler implements PacketInterceptor
                                 String img = payload.getText();
                                 if (img!=null)
                                 {
-                                    result.setImage(img);
+                                    AvatarIngestion.Result ingested = AvatarIngestion.ingest(img, result.getMetadata().getType());
+                                    if (ingested==null)
+                                    {
+                                        Log.debug("Avatarimage rejected ("+user.toBareJID()+")");
+                                        return null;
+                                    }
+                                    result.apply(ingested);
                                     Log.debug("Avatarimage loaded ("+user.toBareJID()+")",result.getMetadata().toString());
                                     founddata=true;
                                     break;
@@ -181,16 +220,91 @@ public class XEP398IQHandler implements PacketInterceptor
     public Avatar getAvatar(JID user)
     {
         Avatar result = null;
-        if (this.plugin.getCache().containsKey(user.toBareJID()))
+        AvatarCacheEntry cachedAvatar = this.plugin.getAvatarCache().get(user);
+        if (cachedAvatar != null)
         {
-            String cachedAvatar = this.plugin.getCache().get(user.toBareJID());
-            result = Avatar.parse(cachedAvatar);
+            result = Avatar.fromCacheEntry(cachedAvatar, getBlob(user, cachedAvatar));
             if (result != null)
             {
+                AvatarMetrics.increment(AvatarMetrics.Counter.CACHE_HIT);
                 return result;
             }
         }
 
+        if (this.plugin.getNegativeCache().isKnownMissing(user))
+        {
+            AvatarMetrics.increment(AvatarMetrics.Counter.NEGATIVE_CACHE_HIT);
+            return null;
+        }
+
+        AvatarMetrics.increment(AvatarMetrics.Counter.CACHE_MISS);
+        return avatarLoader.load("pep:"+user.toBareJID(), () -> {
+            Avatar stored = loadAvatarFromSegmentStore(user, () -> getPEPAvatarId(user));
+            return stored!=null?stored:timed(AvatarMetrics.Operation.LOAD_FROM_PEP, () -> loadAvatarFromPEP(user));
+        }, XEP398Plugin.XMPP_LOAD_TIMEOUT.getValue());
+    }
+
+    /**
+     * read an avatar from the persistent store on the local disk. The stored avatar is only
+     * used if it is still the avatar in the source, the store does not see changes that were
+     * made while the plugin was stopped or disabled.
+     * @param source the SHA-1 hash of the image in PEP or the vCard, null if there is none
+     * @return the avatar or null if the store is disabled, does not know the avatar of the user or the avatar is outdated
+     * */
+    private Avatar loadAvatarFromSegmentStore(JID user, Supplier<String> source)
+    {
+        AvatarSegmentStore store = this.plugin.getSegmentStore();
+        if (store==null)
+        {
+            return null;
+        }
+
+        Avatar result = store.get(user);
+        if (result==null)
+        {
+            return null;
+        }
+
+        // a vcard may hold the shrinked image of the stored avatar
+        String hash = source.get();
+        if (hash==null||!(hash.equalsIgnoreCase(result.getMainHash())||hash.equalsIgnoreCase(result.getMainHashShrinked())))
+        {
+            Log.debug("Avatar of "+user.toBareJID()+" on disk is outdated");
+            return null;
+        }
+
+        Log.debug("Read Avatar from disk ("+user.toBareJID()+")");
+        this.plugin.getBlobStore().put(user, result.getMainHash(), result.getImageBytes(), result.getShrinkedImageBytes());
+        this.plugin.getAvatarCache().put(user, result.toCacheEntry());
+        return result;
+    }
+
+    /**
+     * @return the id of the current PEP avatar of a user, which is the SHA-1 hash of the image, or null if there is none
+     * */
+    private String getPEPAvatarId(JID user)
+    {
+        PEPService pep = getPEPFromUser(user);
+        Node metaNode = pep!=null?pep.getNode(NAMESPACE_METADATA):null;
+        if (metaNode==null||metaNode.getPublishedItems()==null)
+        {
+            return null;
+        }
+        for (PublishedItem itm : metaNode.getPublishedItems())
+        {
+            Element payload = itm.getPayload();
+            Element info = payload!=null?payload.element("info"):null;
+            if (info!=null&&info.attribute("url")==null)
+            {
+                return info.attributeValue("id");
+            }
+        }
+        return null;
+    }
+
+    private Avatar loadAvatarFromPEP(JID user)
+    {
+        Avatar result = null;
         Log.debug("Read Avatar from PEPService ("+user.toBareJID()+")");
 
         PEPService pep = getPEPFromUser(user);
@@ -260,7 +374,13 @@ public class XEP398IQHandler implements PacketInterceptor
                                 String img = payload.getText();
                                 if (img!=null)
                                 {
-                                    result.setImage(img);
+                                    AvatarIngestion.Result ingested = AvatarIngestion.ingest(img, result.getMetadata().getType());
+                                    if (ingested==null)
+                                    {
+                                        Log.debug("Avatarimage rejected ("+user.toBareJID()+")");
+                                        return null;
+                                    }
+                                    result.apply(ingested);
                                     Log.debug("Avatarimage loaded ("+user.toBareJID()+")",result.getMetadata().toString());
                                     founddata=true;
                                     break;
@@ -280,7 +400,7 @@ public class XEP398IQHandler implements PacketInterceptor
                     return null;
                 }
 
-                this.plugin.getCache().put(user.toBareJID(), result.toString());
+                cacheAvatar(user, result);
                 return result;
             }
             else {
@@ -297,26 +417,41 @@ public class XEP398IQHandler implements PacketInterceptor
     private Avatar getAvatarFromVcard(JID from)
     {
         Avatar result = null;
-        if (this.plugin.getCache().containsKey(from.toBareJID()))
+        AvatarCacheEntry cachedAvatar = this.plugin.getAvatarCache().get(from);
+        if (cachedAvatar != null)
         {
-            String cachedAvatar = this.plugin.getCache().get(from.toBareJID());
-            result = Avatar.parse(cachedAvatar);
+            result = Avatar.fromCacheEntry(cachedAvatar, getBlob(from, cachedAvatar));
             if (result != null)
             {
+                AvatarMetrics.increment(AvatarMetrics.Counter.CACHE_HIT);
                 return result;
             }
         }
 
+        if (this.plugin.getNegativeCache().isKnownMissing(from))
+        {
+            AvatarMetrics.increment(AvatarMetrics.Counter.NEGATIVE_CACHE_HIT);
+            return null;
+        }
+
+        AvatarMetrics.increment(AvatarMetrics.Counter.CACHE_MISS);
+        return avatarLoader.load("vcard:"+from.toBareJID(), () -> {
+            Avatar stored = loadAvatarFromSegmentStore(from, () -> getVcardImageHash(from));
+            return stored!=null?stored:timed(AvatarMetrics.Operation.LOAD_FROM_VCARD, () -> loadAvatarFromVcard(from));
+        }, XEP398Plugin.XMPP_LOAD_TIMEOUT.getValue());
+    }
+
+    private Avatar loadAvatarFromVcard(JID from)
+    {
+        Avatar result = null;
         Element vcard = XMPPServer.getInstance().getVCardManager().getVCard(from.getNode());
         if (vcard!=null)
         {
+            // the vcard element is shared with the VCardManager cache and must not be modified here
             Element vcardphoto = vcard.element("PHOTO");
-
             if (vcardphoto==null)
             {
-                vcardphoto=vcard.addElement("PHOTO");
-                vcardphoto.addElement("BINVAL");
-                vcardphoto.addElement("TYPE");
+                return null;
             }
 
             Element binval = vcardphoto.element("BINVAL");
@@ -324,7 +459,11 @@ public class XEP398IQHandler implements PacketInterceptor
             if (binval!=null&&type!=null&&binval.getTextTrim().length()>0&&type.getTextTrim().length()>0)
             {
                 result = buildAvatar(binval.getTextTrim(),type.getTextTrim());
-                this.plugin.getCache().put(from.toBareJID(), result.toString());
+                if (result.getMainHash()==null)
+                {
+                    return null;
+                }
+                cacheAvatar(from, result);
                 return result;
             }
             else
@@ -337,11 +476,76 @@ public class XEP398IQHandler implements PacketInterceptor
         }
     }
 
+    /**
+     * @return the SHA-1 hash of the vCard photo of a user or null if there is none
+     * */
+    private String getVcardImageHash(JID user)
+    {
+        Element vcard = XMPPServer.getInstance().getVCardManager().getVCard(user.getNode());
+        Element photo = vcard!=null?vcard.element("PHOTO"):null;
+        Element binval = photo!=null?photo.element("BINVAL"):null;
+        if (binval==null||binval.getTextTrim().isEmpty())
+        {
+            return null;
+        }
+        try
+        {
+            return AvatarIngestion.sha1Hex(Base64.getDecoder().decode(binval.getTextTrim()));
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * records the latency of a step in the metrics
+     * */
+    private static <T> T timed(AvatarMetrics.Operation operation, Supplier<T> step)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return step.get();
+        }
+        finally
+        {
+            AvatarMetrics.record(operation, start);
+        }
+    }
+
+    private static void timed(AvatarMetrics.Operation operation, Runnable step)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            step.run();
+        }
+        finally
+        {
+            AvatarMetrics.record(operation, start);
+        }
+    }
+
     private Avatar buildAvatar(String base64data, String type)
+    {
+        return buildAvatar(AvatarIngestion.ingest(base64data, type), type);
+    }
+
+    private Avatar buildAvatar(byte[] image, String type)
+    {
+        return buildAvatar(AvatarIngestion.ingest(image, type), type);
+    }
+
+    private Avatar buildAvatar(AvatarIngestion.Result ingested, String type)
     {
         Avatar avatar = new Avatar();
         avatar.getMetadata().setType(type);
-        avatar.setImage(base64data);
+
+        if (ingested!=null)
+        {
+            avatar.apply(ingested);
+        }
 
         String hash = avatar.getMainHash();
         if (hash!=null)
@@ -353,19 +557,6 @@ public class XEP398IQHandler implements PacketInterceptor
             avatar.getMetadata().setId(null);
         }
 
-        if (type==null)
-        {
-            try
-            {
-                avatar.getMetadata().setType(URLConnection.guessContentTypeFromStream(new ByteArrayInputStream(avatar.getImageBytes())));
-            }
-            catch (IOException e)
-            {
-                Log.error("buildAvatar: Could not set mime type of image");
-                avatar.getMetadata().setType("image/*");
-            }
-        }
-
         return avatar;
     }
 
@@ -378,23 +569,41 @@ public class XEP398IQHandler implements PacketInterceptor
         return iq;
     }
 
+    /**
+     * answer a XEP-0008 request from the caches. If the avatar has to be loaded first, the
+     * response is built and sent by the conversion worker of the owner of the avatar, so that
+     * the packet thread does not wait for the database.
+     * @return the response or null if it is sent later
+     * */
     private IQ getXEP0008Avatar(JID avatarjid, JID receiver,String namespace, String id)
     {
-        Avatar avatar = getAvatar(avatarjid);
+        Element data = getAvatarFragment(avatarjid, namespace, false, false);
+        if (data==null&&!this.plugin.getNegativeCache().isKnownMissing(avatarjid))
+        {
+            boolean queued = this.plugin.getConversionExecutor().execute(avatarjid, () ->
+                this.iqRouter.route(getXEP0008Avatar(getAvatarFragment(avatarjid, namespace, false, true), receiver, namespace, id)));
+            if (queued)
+            {
+                return null;
+            }
+            return getError(receiver, namespace, "wait", "500", "resource-constraint", "urn:ietf:params:xml:ns:xmpp-stanzas");
+        }
+        return getXEP0008Avatar(data, receiver, namespace, id);
+    }
 
+    private IQ getXEP0008Avatar(Element data, JID receiver,String namespace, String id)
+    {
         IQ iq = new IQ();
         iq.setFrom(new JID(XMPPServer.getInstance().getServerInfo().getXMPPDomain()));
         iq.setTo(receiver);
         iq.setID(id);
-        if (avatar!=null)
+        if (data!=null)
         {
 
             iq.setType(Type.result);
 
             Element query = iq.setChildElement("query", namespace);
-            Element data = query.addElement("data");
-            data.addAttribute("mimetype", avatar.getMetadata().getType());
-            data.setText(avatar.getImageString());
+            query.add(data);
 
             return iq;
         }
@@ -404,6 +613,73 @@ public class XEP398IQHandler implements PacketInterceptor
         }
 
     }
+
+    /**
+     * get a copy of the prebuilt fragment with the avatar of a user, the fragment is built
+     * and cached on the first request for an image
+     * @param user the owner of the avatar
+     * @param namespace vcard-temp for a PHOTO element, the XEP-0008 namespace for a data element
+     * @param shrinked true for the shrinked image, if there is one
+     * @param load true to load the avatar from PEP or the vCard if it is not cached, must be false on packet threads
+     * @return the fragment or null if the user has no avatar or it is not cached and load is false
+     * */
+    private Element getAvatarFragment(JID user, String namespace, boolean shrinked, boolean load)
+    {
+        String rendition = shrinked?"shrinked":"full";
+        AvatarHashIndex.Entry hashes = getAvatarHashes(user);
+        if (hashes!=null&&hashes.hasAvatar())
+        {
+            Element fragment = this.plugin.getFragmentCache().get(StanzaFragmentCache.key(namespace, rendition, hashes.getMainHash()));
+            if (fragment!=null)
+            {
+                return fragment.createCopy();
+            }
+        }
+
+        Avatar avatar = load?timed(AvatarMetrics.Operation.GET_AVATAR, () -> getAvatar(user)):getCachedAvatar(user);
+        if (avatar==null||avatar.getMainHash()==null)
+        {
+            return null;
+        }
+        AvatarTrace.imageSize(avatar.getImageBytes().length);
+
+        String image = avatar.getImageString();
+        boolean cacheable = true;
+        if (shrinked)
+        {
+            if (avatar.getShrinkedImage()!=null)
+            {
+                image = avatar.getShrinkedImage();
+            }
+            else
+            {
+                Log.error("Could not shrink avatar image.");
+                //the full image is only a fallback, do not cache it as the shrinked one
+                cacheable = false;
+            }
+        }
+
+        Element fragment;
+        if (NAMESPACE_VCARD_TEMP.equals(namespace))
+        {
+            fragment = DocumentHelper.createElement(QName.get("PHOTO", namespace));
+            fragment.addElement("TYPE").setText(avatar.getMetadata().getType());
+            fragment.addElement("BINVAL").setText(image);
+        }
+        else
+        {
+            fragment = DocumentHelper.createElement(QName.get("data", namespace));
+            fragment.addAttribute("mimetype", avatar.getMetadata().getType());
+            fragment.setText(image);
+        }
+        if (cacheable)
+        {
+            this.plugin.getFragmentCache().put(StanzaFragmentCache.key(namespace, rendition, avatar.getMainHash()), fragment, image.length());
+            return fragment.createCopy();
+        }
+        return fragment;
+    }
+
     /**
      * delete metadata node of a user
      * @param jid Jid from which the node will be deleted
@@ -425,64 +701,190 @@ public class XEP398IQHandler implements PacketInterceptor
     }
 
     /**
-     * delete metadata node of a user and build a new one with data of this object
-     * @param jid the jid to which the node will be created
+     * publish data and metadata of an avatar to the PEP service of a user, the PEP service
+     * is looked up once for both nodes
+     * @param jid the owner of the avatar
+     * @param avatar the avatar
      * */
-    public void routeMetaDataToServer(JID jid,Avatar avatar)
+    public void publishAvatarToPEP(JID jid, Avatar avatar)
     {
-
         PEPService pep = getPEPFromUser(jid);
         if (pep!=null)
         {
-            Node ndata = pep.getNode(NAMESPACE_METADATA);
-            LeafNode newNode = null;
-            if (ndata == null) {
-                // Create the node
-                final JID creator = jid.asBareJID();
-                final DefaultNodeConfiguration defaultConfiguration = pep.getDefaultNodeConfiguration(true);
-                newNode = new LeafNode(pep.getUniqueIdentifier(), pep.getRootCollectionNode(), NAMESPACE_METADATA, creator, defaultConfiguration);
+            timed(AvatarMetrics.Operation.ROUTE_DATA, () -> routeDataToServer(pep, jid, avatar));
+            timed(AvatarMetrics.Operation.ROUTE_METADATA, () -> routeMetaDataToServer(pep, jid, avatar));
+        }
+    }
 
-                newNode.addOwner(creator);
-                newNode.saveToDB();
-            }
-            else {
-                newNode = (LeafNode) ndata;
+    /**
+     * get an avatar node of a user, the node is created if it does not exist. Only a new
+     * or reconfigured node is written to the database, published items are persisted by
+     * the pubsub module.
+     * */
+    private LeafNode getOrCreateNode(PEPService pep, JID jid, String nodeId)
+    {
+        Node node = pep.getNode(nodeId);
+        if (node != null) {
+            LeafNode leaf = (LeafNode) node;
+            reconfigureAvatarNode(jid, leaf);
+            return leaf;
+        }
+
+        // Create the node
+        final JID creator = jid.asBareJID();
+        final DefaultNodeConfiguration defaultConfiguration = pep.getDefaultNodeConfiguration(true);
+        LeafNode newNode = new LeafNode(pep.getUniqueIdentifier(), pep.getRootCollectionNode(), nodeId, creator, defaultConfiguration);
+        configureAvatarNode(newNode);
+
+        newNode.addOwner(creator);
+        long start = System.nanoTime();
+        newNode.saveToDB();
+        AvatarMetrics.record(AvatarMetrics.Operation.PEP_SAVE_NODE, start);
+        return newNode;
+    }
+
+    /**
+     * reconfigure the avatar nodes of a user that a client published to directly
+     * */
+    private void reconfigureAvatarNodes(JID jid)
+    {
+        PEPService pep = getPEPFromUser(jid);
+        if (pep==null)
+        {
+            return;
+        }
+        for (String nodeId : new String[] {NAMESPACE_DATA, NAMESPACE_METADATA})
+        {
+            Node node = pep.getNode(nodeId);
+            if (node instanceof LeafNode)
+            {
+                reconfigureAvatarNode(jid, (LeafNode) node);
             }
+        }
+    }
 
-            newNode.deleteItems(newNode.getPublishedItems());
-
-            IQ metadataiq = new IQ(Type.set);
-            metadataiq.setFrom(jid);
-            metadataiq.setID(avatar.getMainHash());
-            Element metapubsub = metadataiq.setChildElement("pubsub", NAMESPACE_PUBSUB);
-            Element metapublish = metapubsub.addElement("publish");
-            metapublish.addAttribute("node", NAMESPACE_METADATA);
-            Element metaitem = metapublish.addElement("item");
-            metaitem.addAttribute("id",avatar.getMainHash());
-            Element metadata = metaitem.addElement("metadata",NAMESPACE_METADATA);
-            Element metainfo = metadata.addElement("info");
-            metainfo.addAttribute("bytes",String.valueOf(avatar.getImageBytes().length));
-            metainfo.addAttribute("id",avatar.getMainHash());
-            metainfo.addAttribute("height",String.valueOf(avatar.getMetadata().getHeight()));
-            metainfo.addAttribute("type",avatar.getMetadata().getType());
-            metainfo.addAttribute("width",String.valueOf(avatar.getMetadata().getWidth()));
-
-            ArrayList<Element> lItems = new ArrayList<Element>();
-            lItems.add(metaitem);
-            try
+    /**
+     * apply the avatar node configuration to an existing node, if it differs. The node is
+     * configured like a node configuration form of the owner, so the pubsub module stores
+     * it and refreshes it on the other cluster nodes.
+     * */
+    private static void reconfigureAvatarNode(JID jid, LeafNode node)
+    {
+        boolean deliverPayloads = !NAMESPACE_DATA.equals(node.getNodeID());
+        if (node.getMaxPublishedItems()==1&&node.isPayloadDelivered()==deliverPayloads&&node.isNotifiedOfRetract())
+        {
+            return;
+        }
+
+        DataForm form = new DataForm(DataForm.Type.submit);
+        form.addField("FORM_TYPE", null, FormField.Type.hidden).addValue("http://jabber.org/protocol/pubsub#node_config");
+        form.addField("pubsub#max_items", null, null).addValue("1");
+        form.addField("pubsub#deliver_payloads", null, null).addValue(deliverPayloads?"1":"0");
+        form.addField("pubsub#notify_retract", null, null).addValue("1");
+
+        long start = System.nanoTime();
+        try
+        {
+            node.configure(form);
+            Log.debug("Reconfigured avatar node "+node.getNodeID()+" of "+jid.toBareJID());
+        }
+        catch (NotAcceptableException e)
+        {
+            Log.warn("Could not reconfigure avatar node "+node.getNodeID()+" of "+jid.toBareJID()+": "+e.getMessage());
+        }
+        AvatarMetrics.record(AvatarMetrics.Operation.PEP_SAVE_NODE, start);
+    }
+
+    /**
+     * Both avatar nodes keep only the current item (XEP-0084). Subscribers of the data node
+     * are notified without the (possibly large) image, they request it when the metadata
+     * announces a hash they do not know. Retractions are notified on both nodes, so clients
+     * learn about a removed avatar. Used for new nodes, before they are saved.
+     * */
+    private static void configureAvatarNode(LeafNode node)
+    {
+        node.setMaxPublishedItems(1);
+        node.setPayloadDelivered(!NAMESPACE_DATA.equals(node.getNodeID()));
+        node.setNotifiedOfRetract(true);
+    }
+
+    /**
+     * publish an item to an avatar node. Publishing replaces the item of a node that keeps
+     * one item, older items are only deleted from nodes that keep more.
+     * @param fallback routed instead if the item could not be published directly
+     * */
+    private void publishItem(LeafNode node, JID jid, Element item, IQ fallback)
+    {
+        if (node.getMaxPublishedItems()!=1)
+        {
+            List<PublishedItem> stale = new ArrayList<PublishedItem>();
+            for (PublishedItem published : node.getPublishedItems())
             {
-                newNode.publishItems(jid, lItems);
+                if (!published.getID().equals(item.attributeValue("id")))
+                {
+                    stale.add(published);
+                }
             }
-            catch (Exception e)
+            if (!stale.isEmpty())
             {
-                Log.error(e.getMessage(),e);
-                XMPPServer.getInstance().getIQRouter().route(metadataiq);
+                node.deleteItems(stale);
             }
+        }
 
-            newNode.saveToDB();
+        ArrayList<Element> lItems = new ArrayList<Element>();
+        lItems.add(item);
+        long start = System.nanoTime();
+        try
+        {
+            node.publishItems(jid, lItems);
+        }
+        catch (Exception e)
+        {
+            Log.error(e.getMessage(),e);
+            XMPPServer.getInstance().getIQRouter().route(fallback);
+        }
+        finally
+        {
+            AvatarMetrics.record(AvatarMetrics.Operation.PEP_PUBLISH_ITEM, start);
+        }
+    }
+
+    /**
+     * delete metadata node of a user and build a new one with data of this object
+     * @param jid the jid to which the node will be created
+     * */
+    public void routeMetaDataToServer(JID jid,Avatar avatar)
+    {
+        PEPService pep = getPEPFromUser(jid);
+        if (pep!=null)
+        {
+            timed(AvatarMetrics.Operation.ROUTE_METADATA, () -> routeMetaDataToServer(pep, jid, avatar));
         }
     }
 
+    private void routeMetaDataToServer(PEPService pep, JID jid, Avatar avatar)
+    {
+        LeafNode newNode = getOrCreateNode(pep, jid, NAMESPACE_METADATA);
+
+        IQ metadataiq = new IQ(Type.set);
+        metadataiq.setFrom(jid);
+        metadataiq.setID(avatar.getMainHash());
+        Element metapubsub = metadataiq.setChildElement("pubsub", NAMESPACE_PUBSUB);
+        Element metapublish = metapubsub.addElement("publish");
+        metapublish.addAttribute("node", NAMESPACE_METADATA);
+        Element metaitem = metapublish.addElement("item");
+        metaitem.addAttribute("id",avatar.getMainHash());
+        Element metadata = metaitem.addElement("metadata",NAMESPACE_METADATA);
+        Element metainfo = metadata.addElement("info");
+        metainfo.addAttribute("bytes",String.valueOf(avatar.getImageBytes().length));
+        metainfo.addAttribute("id",avatar.getMainHash());
+        metainfo.addAttribute("height",String.valueOf(avatar.getMetadata().getHeight()));
+        metainfo.addAttribute("type",avatar.getMetadata().getType());
+        metainfo.addAttribute("width",String.valueOf(avatar.getMetadata().getWidth()));
+
+        publishItem(newNode, jid, metaitem, metadataiq);
+    }
+
     /**
      * delete data node of a user
      * @param jid
@@ -526,53 +928,30 @@ public class XEP398IQHandler implements PacketInterceptor
      * */
     public void routeDataToServer(JID jid,Avatar avatar)
     {
-
         PEPService pep = getPEPFromUser(jid);
         if (pep!=null)
         {
-            Node ndata = pep.getNode(NAMESPACE_DATA);
-            LeafNode newNode = null;
-            if (ndata == null) {
-                // Create the node
-                final JID creator = jid.asBareJID();
-                final DefaultNodeConfiguration defaultConfiguration = pep.getDefaultNodeConfiguration(true);
-                newNode = new LeafNode(pep.getUniqueIdentifier(), pep.getRootCollectionNode(), NAMESPACE_DATA, creator, defaultConfiguration);
-
-                newNode.addOwner(creator);
-                newNode.saveToDB();
-            }
-            else {
-                newNode = (LeafNode) ndata;
-            }
-
-            newNode.deleteItems(newNode.getPublishedItems());
-
-            IQ imagedata = new IQ(Type.set);
-            imagedata.setFrom(jid);
-            imagedata.setID(UUID.randomUUID().toString());
-            Element pubsub = imagedata.setChildElement("pubsub", NAMESPACE_PUBSUB);
-            Element publish = pubsub.addElement("publish");
-            publish.addAttribute("node", NAMESPACE_DATA);
-            Element item = publish.addElement("item");
-            item.addAttribute("id",avatar.getMainHash());
-            Element data = item.addElement("data", NAMESPACE_DATA);
-            data.setText(avatar.getImageString());
-
-            ArrayList<Element> lItems = new ArrayList<Element>();
-            lItems.add(item);
-            try
-            {
-                newNode.publishItems(jid, lItems);
-            }
-            catch (Exception e)
-            {
-                Log.error(e.getMessage(),e);
-                XMPPServer.getInstance().getIQRouter().route(imagedata);
-            }
-
-            newNode.saveToDB();
+            timed(AvatarMetrics.Operation.ROUTE_DATA, () -> routeDataToServer(pep, jid, avatar));
         }
     }
+
+    private void routeDataToServer(PEPService pep, JID jid, Avatar avatar)
+    {
+        LeafNode newNode = getOrCreateNode(pep, jid, NAMESPACE_DATA);
+
+        IQ imagedata = new IQ(Type.set);
+        imagedata.setFrom(jid);
+        imagedata.setID(UUID.randomUUID().toString());
+        Element pubsub = imagedata.setChildElement("pubsub", NAMESPACE_PUBSUB);
+        Element publish = pubsub.addElement("publish");
+        publish.addAttribute("node", NAMESPACE_DATA);
+        Element item = publish.addElement("item");
+        item.addAttribute("id",avatar.getMainHash());
+        Element data = item.addElement("data", NAMESPACE_DATA);
+        data.setText(avatar.getImageString());
+
+        publishItem(newNode, jid, item, imagedata);
+    }
     
     /**
      * delete data node of a user and build a new one with data of this object
@@ -613,6 +992,7 @@ public class XEP398IQHandler implements PacketInterceptor
             }
         }
 
+        long setStart = System.nanoTime();
         try
         {
             XMPPServer.getInstance().getVCardManager().setVCard(jid.getNode(), vCard);
@@ -621,25 +1001,45 @@ public class XEP398IQHandler implements PacketInterceptor
         {
             XMPPServer.getInstance().getIQRouter().route(iq);
         }
+        finally
+        {
+            AvatarMetrics.record(AvatarMetrics.Operation.VCARD_SET, setStart);
+        }
     }
 
     public void broadcastDeletePresenceUpdate(JID jid)
     {
-        broadcastPresenceUpdate(jid,null,false);
-        if (XEP398Plugin.XMPP_XEP0008_ENABLED.getValue())
+        long start = System.nanoTime();
+        try
         {
-            broadcastPresenceUpdateJabberXAvatar(jid,null,false);
+            broadcastPresenceUpdate(jid,null,false);
+            if (XEP398Plugin.XMPP_XEP0008_ENABLED.getValue())
+            {
+                broadcastPresenceUpdateJabberXAvatar(jid,null,false);
+            }
+        }
+        finally
+        {
+            AvatarMetrics.record(AvatarMetrics.Operation.PRESENCE_BROADCAST, start);
         }
     }
 
     public void broadcastPublishPresenceUpdate(JID jid, Avatar avatar,boolean shrinked)
     {
-        broadcastPresenceUpdate(jid,avatar,shrinked);
-        if (XEP398Plugin.XMPP_XEP0008_ENABLED.getValue())
+        long start = System.nanoTime();
+        try
         {
-            broadcastPresenceUpdateJabberXAvatar(jid,avatar,shrinked);
-        }
-    }
+            broadcastPresenceUpdate(jid,avatar,shrinked);
+            if (XEP398Plugin.XMPP_XEP0008_ENABLED.getValue())
+            {
+                broadcastPresenceUpdateJabberXAvatar(jid,avatar,shrinked);
+            }
+        }
+        finally
+        {
+            AvatarMetrics.record(AvatarMetrics.Operation.PRESENCE_BROADCAST, start);
+        }
+    }
 
     /**
     * send a Presence to the server, which routes it to subscribers
@@ -761,7 +1161,109 @@ public class XEP398IQHandler implements PacketInterceptor
          }
      }
 
-    private void handleIQ(IQ iq, Session session, boolean incoming, boolean processed) throws PacketRejectedException {
+    /**
+     * check whether an incoming IQ changes an avatar: a vCard set or a publish, retract or
+     * delete on one of the avatar nodes
+     * */
+    private boolean isConversionRequest(IQ iq)
+    {
+        if (iq.getType()!=Type.set||iq.getChildElement()==null)
+        {
+            return false;
+        }
+        Element childElement = iq.getChildElement();
+        String childns = childElement.getNamespaceURI();
+        if (childns==null)
+        {
+            return false;
+        }
+        if (childns.equalsIgnoreCase(NAMESPACE_VCARD_TEMP))
+        {
+            return true;
+        }
+        if (childns.equalsIgnoreCase(NAMESPACE_PUBSUB))
+        {
+            Element publish = childElement.element("publish");
+            if (publish!=null&&NAMESPACE_METADATA.equalsIgnoreCase(publish.attributeValue("node")))
+            {
+                return true;
+            }
+            return isAvatarNodeRemoval(childElement);
+        }
+        return false;
+    }
+
+    /**
+     * check whether a pubsub element retracts from or deletes one of the avatar nodes
+     * */
+    private static boolean isAvatarNodeRemoval(Element pubsub)
+    {
+        for (String name : new String[] {"retract", "delete"})
+        {
+            Element removal = pubsub.element(name);
+            if (removal!=null)
+            {
+                String node = removal.attributeValue("node");
+                if (NAMESPACE_METADATA.equalsIgnoreCase(node)||NAMESPACE_DATA.equalsIgnoreCase(node))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * times and traces the handling of the IQs that trigger a conversion
+     * */
+    private void dispatchIQ(IQ iq, Session session, boolean incoming, boolean processed)
+    {
+        Element childElement = iq.getChildElement();
+        String childns = childElement!=null?childElement.getNamespaceURI():null;
+        AvatarMetrics.Operation operation = null;
+        AvatarTrace.Trigger trigger = null;
+        if (childns!=null)
+        {
+            if (incoming&&processed&&childns.equalsIgnoreCase(NAMESPACE_PUBSUB)&&iq.getType()==Type.set)
+            {
+                operation = AvatarMetrics.Operation.IQ_PUBSUB_SET;
+                trigger = AvatarTrace.Trigger.PEP_PUBLISH;
+            }
+            else
+            if (incoming&&processed&&childns.equalsIgnoreCase(NAMESPACE_VCARD_TEMP)&&iq.getType()==Type.set)
+            {
+                operation = AvatarMetrics.Operation.IQ_VCARD_SET;
+                trigger = AvatarTrace.Trigger.VCARD_SET;
+            }
+            else
+            if (!incoming&&!processed&&childns.equalsIgnoreCase(NAMESPACE_VCARD_TEMP)&&iq.getType()==Type.result)
+            {
+                operation = AvatarMetrics.Operation.IQ_VCARD_RESULT;
+                trigger = AvatarTrace.Trigger.VCARD_RESULT;
+            }
+        }
+
+        if (operation==null)
+        {
+            handleIQ(iq,session,incoming,processed);
+            return;
+        }
+
+        boolean traced = AvatarTrace.begin(trigger, iq.getFrom());
+        try
+        {
+            timed(operation, () -> handleIQ(iq,session,incoming,processed));
+        }
+        finally
+        {
+            if (traced)
+            {
+                AvatarTrace.end();
+            }
+        }
+    }
+
+    private void handleIQ(IQ iq, Session session, boolean incoming, boolean processed) {
         
         if (iq.getType()!=Type.set&&iq.getType()!=Type.result)
         {
@@ -802,19 +1304,22 @@ public class XEP398IQHandler implements PacketInterceptor
                                      * Services SHOULD verify that the SHA-1 hash of the image matches the id.
                                      * */
                                     
+                                    this.plugin.getNegativeCache().invalidate(iq.getFrom());
+                                    reconfigureAvatarNodes(iq.getFrom());
                                     Avatar avatar = getAvatarWithInfotag(iq.getFrom(),metadata.element("info"));
                                     if (avatar!=null)
                                     {
-                                        this.plugin.getCache().put(iq.getFrom().toBareJID(), avatar.toString());
+                                        avatarChanged(iq.getFrom(), avatar);
                                         if (avatar.isValidHash(avatar.getMetadata().getId()))
                                         {
+                                            AvatarMetrics.increment(AvatarMetrics.Counter.CONVERSION_PEP_TO_VCARD);
                                             if (XEP398Plugin.XMPP_DELETEOTHERAVATAR_ENABLED.getValue())
                                             {
                                                 broadcastPublishPresenceUpdate(iq.getFrom(),avatar,false);
                                             }
                                             else
                                             {
-                                                routeVCardUpdateToServer(iq.getFrom(),avatar);
+                                                timed(AvatarMetrics.Operation.ROUTE_VCARD_UPDATE, () -> routeVCardUpdateToServer(iq.getFrom(),avatar));
                                                 broadcastPublishPresenceUpdate(iq.getFrom(),avatar,true);
                                             }
                                         }
@@ -826,11 +1331,11 @@ public class XEP398IQHandler implements PacketInterceptor
                             }
                         }
                     }
-                    if (childElement.element("retract")!=null||childElement.element("delete")!=null)
+                    if (isAvatarNodeRemoval(childElement))
                     {
                         //Delete an avatar here
                         Log.debug("Processing incoming pubsub / pep avatar retract/delete (XEP-0084)");
-                        this.plugin.getCache().remove(iq.getFrom().toBareJID());
+                        avatarRemoved(iq.getFrom());
                         if (XEP398Plugin.XMPP_DELETEOTHERAVATAR_ENABLED.getValue())
                         {
                             deleteVCardAvatar(iq.getFrom());
@@ -872,11 +1377,36 @@ public class XEP398IQHandler implements PacketInterceptor
                                            all subscribers of the metadata node.
                                          * */
 
-                                         Avatar avatar = buildAvatar(binval.getText(), type.getText());
-                                         this.plugin.getCache().put(iq.getFrom().toBareJID(), avatar.toString());
+                                         byte[] image = decodeImage(binval.getText());
+                                         if (image==null)
+                                         {
+                                             AvatarMetrics.increment(AvatarMetrics.Counter.INVALID_IMAGE);
+                                             Log.warn("Ignoring invalid vcard avatar of "+iq.getFrom().toBareJID());
+                                             return;
+                                         }
+
+                                         if (isUnchanged(iq.getFrom(), image))
+                                         {
+                                             // clients resend their whole vcard on every change, e.g. of the nickname
+                                             Log.debug("Avatar of "+iq.getFrom().toBareJID()+" did not change, skipping conversion");
+                                             if (XEP398Plugin.XMPP_DELETEOTHERAVATAR_ENABLED.getValue())
+                                             {
+                                                 deleteVCardAvatar(iq.getFrom());
+                                             }
+                                             return;
+                                         }
+
+                                         Avatar avatar = buildAvatar(image, type!=null?type.getText():null);
+                                         if (avatar.getMainHash()==null)
+                                         {
+                                             AvatarMetrics.increment(AvatarMetrics.Counter.INVALID_IMAGE);
+                                             Log.warn("Ignoring invalid vcard avatar of "+iq.getFrom().toBareJID());
+                                             return;
+                                         }
+                                         avatarChanged(iq.getFrom(), avatar);
 
-                                         routeDataToServer(iq.getFrom(), avatar);
-                                         routeMetaDataToServer(iq.getFrom(), avatar);
+                                         publishAvatarToPEP(iq.getFrom(), avatar);
+                                         AvatarMetrics.increment(AvatarMetrics.Counter.CONVERSION_VCARD_TO_PEP);
                                          if (XEP398Plugin.XMPP_DELETEOTHERAVATAR_ENABLED.getValue())
                                          {
                                              deleteVCardAvatar(iq.getFrom());
@@ -885,13 +1415,13 @@ public class XEP398IQHandler implements PacketInterceptor
                                 }
                             }
                             else {
-                                this.plugin.getCache().remove(iq.getFrom().toBareJID());
+                                avatarRemoved(iq.getFrom());
                                 deleteVCardAvatar(iq.getFrom());
                                 deletePEPAvatar(iq.getFrom());
                             }
                         }
                         else {
-                            this.plugin.getCache().remove(iq.getFrom().toBareJID());
+                            avatarRemoved(iq.getFrom());
                             deleteVCardAvatar(iq.getFrom());
                             deletePEPAvatar(iq.getFrom());
                         }
@@ -903,50 +1433,18 @@ public class XEP398IQHandler implements PacketInterceptor
                     Element vcard = null;
                     if ((vcard=iq.getElement().element("vCard"))!=null)
                     {
-                        Avatar avatar = getAvatar(iq.getFrom());
-                        if (avatar!=null)
+                        // the PHOTO element of the vcard is replaced by the prebuilt one of the avatar
+                        boolean shrinked = !XEP398Plugin.XMPP_DELETEOTHERAVATAR_ENABLED.getValue()&&XEP398Plugin.XMPP_SHRINKVCARDIMG_ENABLED.getValue();
+                        // on a miss the vCard is sent as it is, the avatar is loaded in the background
+                        Element photo = getAvatarFragment(iq.getFrom(), NAMESPACE_VCARD_TEMP, shrinked, false);
+                        if (photo!=null)
                         {
-                            Element photo = null;
-                            if ((photo=vcard.element("PHOTO"))==null)
-                            {
-                                photo = vcard.addElement("PHOTO");
-                            }
-
-                            Element binval = null;
-                            if ((binval=photo.element("BINVAL"))==null) {
-                                binval = photo.addElement("BINVAL");
-                            }
-
-                            Element type = null;
-                            if ((type=photo.element("TYPE"))==null) {
-                                type = photo.addElement("TYPE");
-                            }
-
-                            type.setText(avatar.getMetadata().getType());
-                            if (XEP398Plugin.XMPP_DELETEOTHERAVATAR_ENABLED.getValue())
-                            {
-                                binval.setText(avatar.getImageString());
-                            }
-                            else
+                            Element old = null;
+                            while ((old=vcard.element("PHOTO"))!=null)
                             {
-                                if (XEP398Plugin.XMPP_SHRINKVCARDIMG_ENABLED.getValue())
-                                {
-                                    String shrinked = avatar.getShrinkedImage();
-                                    if (shrinked!=null)
-                                    {
-                                        binval.setText(shrinked);
-                                    }
-                                    else
-                                    {
-                                        Log.error("Could not shrink avatar image.");
-                                        binval.setText(avatar.getImageString());
-                                    }
-                                }
-                                else
-                                {
-                                    binval.setText(avatar.getImageString());
-                                }
+                                vcard.remove(old);
                             }
+                            vcard.add(photo);
                         }
                     }
                 }
@@ -958,17 +1456,237 @@ public class XEP398IQHandler implements PacketInterceptor
         }
     }
 
+    /**
+     * Stamps the avatar hash into an inbound presence before the router fans it out to the
+     * roster, so that the outgoing copies already carry it.
+     * @param p the presence as received from the client
+     * */
+    private void handleIncomingPresence(Presence p, Session session)
+    {
+        long start = System.nanoTime();
+        boolean traced = AvatarTrace.begin(AvatarTrace.Trigger.PRESENCE, p.getFrom());
+        try
+        {
+            String bareJID = p.getFrom().toBareJID();
+            if (!p.isAvailable())
+            {
+                if (p.getType()==Presence.Type.unavailable&&p.getTo()==null)
+                {
+                    ingressStamps.remove(bareJID);
+                }
+                return;
+            }
+
+            String hash = stampPresence(p);
+            if (hash!=null)
+            {
+                ingressStamps.put(bareJID, hash);
+            }
+        }
+        finally
+        {
+            if (traced)
+            {
+                AvatarTrace.end();
+            }
+            AvatarMetrics.record(AvatarMetrics.Operation.INCOMING_PRESENCE, start);
+        }
+    }
+
     private void handleOutgoingPresence(Presence p, Session session)
     {
-        Element x = p.getChildElement("x", NAMESPACE_VCARD_TEMP_X_UPDATE);
-        Avatar avatar = getAvatar(p.getFrom());
+        long start = System.nanoTime();
+        boolean traced = AvatarTrace.begin(AvatarTrace.Trigger.PRESENCE, p.getFrom());
+        try
+        {
+            if (XEP398Plugin.XMPP_INGRESSSTAMPING_ENABLED.getValue())
+            {
+                // Copies of a presence that was already stamped at ingress do not need another lookup
+                Element x = p.getChildElement("x", NAMESPACE_VCARD_TEMP_X_UPDATE);
+                if (x!=null&&x.element("photo")!=null)
+                {
+                    String stamped = ingressStamps.get(p.getFrom().toBareJID());
+                    if (stamped!=null&&stamped.equals(x.element("photo").getTextTrim()))
+                    {
+                        return;
+                    }
+                }
+            }
+
+            stampPresence(p);
+        }
+        finally
+        {
+            if (traced)
+            {
+                AvatarTrace.end();
+            }
+            AvatarMetrics.record(AvatarMetrics.Operation.OUTGOING_PRESENCE, start);
+        }
+    }
 
+    /**
+     * Looks up the avatar hashes of a user in the hash index. If the user is not indexed yet,
+     * the avatar is loaded on the conversion worker of the user, so that presences are not
+     * held up by PEP or the vCard; a later presence is stamped from the index.
+     * @param user the user
+     * @return the index entry or null if the user has no avatar or is not indexed yet
+     * */
+    private AvatarHashIndex.Entry getAvatarHashes(JID user)
+    {
+        AvatarHashIndex.Entry entry = this.plugin.getHashIndex().get(user);
+        if (entry==null)
+        {
+            warmUpLater(user);
+        }
+        return entry;
+    }
+
+    /**
+     * queue the warm-up of a user to their conversion worker, unless it is already queued, the
+     * user is known to have no avatar or the queue is filling up
+     * */
+    private void warmUpLater(JID user)
+    {
+        final String bareJID = user.toBareJID();
+        if (this.plugin.getNegativeCache().isKnownMissing(user)||!pendingWarmups.add(bareJID))
+        {
+            return;
+        }
+        boolean queued = this.plugin.getConversionExecutor().offer(user, () -> {
+            try
+            {
+                warmUp(user);
+            }
+            finally
+            {
+                pendingWarmups.remove(bareJID);
+            }
+        });
+        if (!queued)
+        {
+            pendingWarmups.remove(bareJID);
+        }
+    }
+
+    /**
+     * @return the avatar of a user from the caches or null if it is not cached on this node or in the cluster
+     * */
+    private Avatar getCachedAvatar(JID user)
+    {
+        AvatarCacheEntry cachedAvatar = this.plugin.getAvatarCache().get(user);
+        return cachedAvatar!=null?Avatar.fromCacheEntry(cachedAvatar, getBlob(user, cachedAvatar)):null;
+    }
+
+    /**
+     * convert the vcard avatar of a user to PEP without broadcasting a presence, used by the {@link AvatarMigrationJob}
+     * @param user the user
+     * @return true if an avatar was converted, false if the user has no vcard avatar or already has a PEP avatar
+     * */
+    boolean migrate(JID user)
+    {
+        // look for a PEP avatar without creating a PEP service, most users of a directory have none
+        PEPService pep = null;
+        try
+        {
+            pep = pepmgr.getPEPService(user);
+        }
+        catch (Exception e)
+        {
+            Log.debug("migrate: PEPService of "+user.toBareJID()+" could not be loaded: "+e.getMessage());
+        }
+        if (pep!=null)
+        {
+            Node metaNode = pep.getNode(NAMESPACE_METADATA);
+            if (metaNode!=null&&!metaNode.getPublishedItems().isEmpty())
+            {
+                return false;
+            }
+        }
+
+        Avatar avatar = timed(AvatarMetrics.Operation.LOAD_FROM_VCARD, () -> loadAvatarFromVcard(user));
         if (avatar==null)
         {
-            avatar = getAvatarFromVcard(p.getFrom());
+            return false;
+        }
+
+        // there is something to publish, create the PEP service if the user does not have one yet
+        if (pep==null&&getPEPFromUser(user, true)==null)
+        {
+            return false;
+        }
+
+        avatarChanged(user, avatar);
+        publishAvatarToPEP(user, avatar);
+        if (XEP398Plugin.XMPP_DELETEOTHERAVATAR_ENABLED.getValue())
+        {
+            deleteVCardAvatar(user);
+        }
+        return true;
+    }
+
+    /**
+     * load the avatar of a user into the cache and the hash index
+     * @param user the user
+     * @return true if the user has an avatar
+     * */
+    boolean warmUp(JID user)
+    {
+        if (this.plugin.getNegativeCache().isKnownMissing(user))
+        {
+            return false;
+        }
+
+        Avatar avatar;
+        try
+        {
+            avatar = timed(AvatarMetrics.Operation.GET_AVATAR, () -> getAvatar(user));
+            if (avatar==null)
+            {
+                avatar = timed(AvatarMetrics.Operation.GET_AVATAR_FROM_VCARD, () -> getAvatarFromVcard(user));
+            }
+        }
+        catch (CancellationException e)
+        {
+            // interrupted while another thread loaded the avatar, nothing is known about it
+            Log.debug(e.getMessage());
+            return false;
         }
 
         if (avatar!=null)
+        {
+            this.plugin.getHashIndex().put(user, avatar);
+            return true;
+        }
+
+        this.plugin.getNegativeCache().markMissing(user);
+        return false;
+    }
+
+    /**
+     * Adds or overwrites the vcard-temp:x:update photo hash of a presence
+     * @param p the presence to modify
+     * @return the hash written into the presence or null if nothing was written
+     * */
+    private String stampPresence(Presence p)
+    {
+        AvatarHashIndex.Entry avatar = getAvatarHashes(p.getFrom());
+        return stamp(p, avatar, XEP398Plugin.XMPP_DELETEOTHERAVATAR_ENABLED.getValue(), XEP398Plugin.XMPP_SHRINKVCARDIMG_ENABLED.getValue());
+    }
+
+    /**
+     * writes the hash of an avatar into the vcard-temp:x:update element of a presence
+     * @param p the presence to modify
+     * @param avatar the hashes of the avatar of the sender, may be null
+     * @param onlyPep true if avatars are only stored in PEP
+     * @param shrinked true if the vcard holds the shrinked image
+     * @return the hash written into the presence or null if nothing was written
+     * */
+    static String stamp(Presence p, AvatarHashIndex.Entry avatar, boolean onlyPep, boolean shrinked)
+    {
+        Element x = p.getChildElement("x", NAMESPACE_VCARD_TEMP_X_UPDATE);
+
+        if (avatar!=null&&avatar.hasAvatar())
         {
             /*
              * The “Business Rules” section of XEP-0153 tells entities to include a hash of the vCard
@@ -993,32 +1711,191 @@ public class XEP398IQHandler implements PacketInterceptor
                 photo = x.addElement("photo");
             }
 
-            if (XEP398Plugin.XMPP_DELETEOTHERAVATAR_ENABLED.getValue())
+            String hash = null;
+            if (onlyPep)
             {
-                photo.setText(avatar.getMainHash());
+                hash = avatar.getMainHash();
             }
             else
             {
-                if (XEP398Plugin.XMPP_SHRINKVCARDIMG_ENABLED.getValue())
+                if (shrinked)
                 {
-                    String hash = avatar.getMainHashShrinked();
-                    if (hash!=null)
-                    {
-                        photo.setText(hash);
-                    }
-                    else
+                    hash = avatar.getMainHashShrinked();
+                    if (hash==null)
                     {
                         Log.error("Could not shrink avatar image.");
                     }
                 }
                 else
                 {
-                    photo.setText(avatar.getMainHash());
+                    hash = avatar.getMainHash();
                 }
             }
+
+            if (hash!=null)
+            {
+                photo.setText(hash);
+            }
+            return hash;
+        }
+        return null;
+    }
+
+    /**
+     * put the image into the blob store and the hashes and metadata into the cache, and
+     * write the avatar to the persistent store if it is enabled
+     * @param jid the owner of the avatar
+     * @param avatar the avatar
+     * */
+    private void cacheAvatar(JID jid, Avatar avatar)
+    {
+        this.plugin.getBlobStore().put(jid, avatar.getMainHash(), avatar.getImageBytes(), avatar.getShrinkedImageBytes());
+        if (ClusterManager.isClusteringStarted()&&!this.plugin.getImageCache().containsKey(avatar.getMainHash()))
+        {
+            this.plugin.getImageCache().put(avatar.getMainHash(), new AvatarImageEntry(avatar.getImageBytes(), avatar.getShrinkedImageBytes()));
+        }
+        this.plugin.getAvatarCache().put(jid, avatar.toCacheEntry());
+
+        final AvatarSegmentStore store = this.plugin.getSegmentStore();
+        if (store!=null)
+        {
+            this.plugin.getConversionExecutor().execute(jid, () -> {
+                try
+                {
+                    store.put(jid, avatar);
+                }
+                catch (IOException e)
+                {
+                    Log.error("Could not write avatar of "+jid.toBareJID()+" to disk: "+e.getMessage(), e);
+                }
+            });
+        }
+    }
+
+    /**
+     * get the image of a cached avatar from the blob store, in a cluster an image cached by
+     * another node is copied from the XEP398Images cache into the blob store
+     * @return the image or null if it is not available on this node
+     * */
+    private AvatarBlobStore.Blob getBlob(JID user, AvatarCacheEntry entry)
+    {
+        String hash = AvatarHashIndex.byteArray2Hex(entry.getMainHash());
+        AvatarBlobStore.Blob blob = this.plugin.getBlobStore().get(hash);
+        if (blob==null&&hash!=null&&ClusterManager.isClusteringStarted())
+        {
+            AvatarImageEntry image = this.plugin.getImageCache().get(hash);
+            if (image!=null)
+            {
+                this.plugin.getBlobStore().put(user, hash, image.getImage(), image.getShrinkedImage());
+                blob = new AvatarBlobStore.Blob(image.getImage(), image.getShrinkedImage());
+            }
+        }
+        return blob;
+    }
+
+    /**
+     * update cache and hash index after a user published a new avatar
+     * @param jid the user whose avatar changed
+     * @param avatar the new avatar
+     * */
+    private void avatarChanged(JID jid, Avatar avatar)
+    {
+        cacheAvatar(jid, avatar);
+        this.plugin.getHashIndex().put(jid, avatar);
+        this.plugin.getNegativeCache().invalidate(jid);
+        invalidateStamp(jid);
+        AvatarInvalidationTask.broadcast(jid);
+    }
+
+    /**
+     * update cache and hash index after a user removed the avatar
+     * @param jid the user whose avatar was removed
+     * */
+    private void avatarRemoved(JID jid)
+    {
+        this.plugin.getAvatarCache().remove(jid);
+        this.plugin.getBlobStore().release(jid);
+        releaseFromSegmentStore(jid);
+        this.plugin.getHashIndex().putNoAvatar(jid);
+        this.plugin.getNegativeCache().invalidate(jid);
+        invalidateStamp(jid);
+        AvatarInvalidationTask.broadcast(jid);
+    }
+
+    /**
+     * forget everything cached about the avatar of a user and convert it again: a PEP avatar
+     * is written to the vCard, otherwise a vCard avatar is published to PEP
+     * @param user the user
+     * @return true if an avatar was converted
+     * */
+    boolean reconvert(JID user)
+    {
+        this.plugin.getAvatarCache().remove(user);
+        invalidateLocal(user);
+        this.plugin.getNegativeCache().invalidate(user);
+
+        Avatar avatar = timed(AvatarMetrics.Operation.LOAD_FROM_PEP, () -> loadAvatarFromPEP(user));
+        if (avatar!=null&&avatar.getMainHash()!=null)
+        {
+            avatarChanged(user, avatar);
+            if (!XEP398Plugin.XMPP_DELETEOTHERAVATAR_ENABLED.getValue())
+            {
+                timed(AvatarMetrics.Operation.ROUTE_VCARD_UPDATE, () -> routeVCardUpdateToServer(user, avatar));
+            }
+            return true;
+        }
+        return migrate(user);
+    }
+
+    /**
+     * drop everything this node keeps about the avatar of a user, after another node of
+     * the cluster has changed or removed it
+     * @param jid the user whose avatar changed
+     * */
+    void invalidateLocal(JID jid)
+    {
+        this.plugin.getAvatarCache().invalidateLocal(jid);
+        this.plugin.getHashIndex().remove(jid);
+        this.plugin.getBlobStore().release(jid);
+        releaseFromSegmentStore(jid);
+        invalidateStamp(jid);
+    }
+
+    private void releaseFromSegmentStore(JID jid)
+    {
+        final AvatarSegmentStore store = this.plugin.getSegmentStore();
+        if (store!=null)
+        {
+            this.plugin.getConversionExecutor().execute(jid, () -> {
+                try
+                {
+                    store.release(jid);
+                }
+                catch (IOException e)
+                {
+                    Log.error("Could not remove avatar of "+jid.toBareJID()+" from disk: "+e.getMessage(), e);
+                }
+            });
         }
     }
 
+    /**
+     * forget the hash stamped at ingress, so outgoing copies get stamped again until the next inbound presence
+     * @param jid the user whose avatar changed
+     * */
+    private void invalidateStamp(JID jid)
+    {
+        ingressStamps.remove(jid.toBareJID());
+    }
+
+    /**
+     * forget all hashes stamped at ingress
+     * */
+    void clearStamps()
+    {
+        ingressStamps.clear();
+    }
+
     @Override
     public void interceptPacket(Packet packet, Session session, boolean incoming, boolean processed)
             throws PacketRejectedException {
@@ -1029,7 +1906,29 @@ public class XEP398IQHandler implements PacketInterceptor
             {
                 if (packet.getFrom()!=null&&packet.getFrom().getDomain().equalsIgnoreCase(XMPPServer.getInstance().getServerInfo().getXMPPDomain()))
                 {
-                    handleIQ((IQ)packet,session,incoming,processed);
+                    IQ iq = (IQ) packet;
+                    if (incoming&&processed)
+                    {
+                        if (isConversionRequest(iq))
+                        {
+                            // conversions touch images and the database, keep them away from the packet thread.
+                            // Bursts of updates of one user are collapsed into the latest one.
+                            final IQ copy = iq.createCopy();
+                            this.plugin.getConversionExecutor().executeCoalesced(copy.getFrom(), () -> dispatchIQ(copy,session,true,true), XEP398Plugin.XMPP_CONVERSION_COALESCEWINDOW.getValue());
+                        }
+                    }
+                    else
+                    {
+                        dispatchIQ(iq,session,incoming,processed);
+                    }
+                }
+            }
+            else 
+            if (packet instanceof Presence && incoming && !processed && XEP398Plugin.XMPP_INGRESSSTAMPING_ENABLED.getValue())
+            {
+                if (packet.getFrom()!=null&&packet.getFrom().getDomain().equalsIgnoreCase(XMPPServer.getInstance().getServerInfo().getXMPPDomain()))
+                {
+                    handleIncomingPresence((Presence) packet,session);
                 }
             }
             else 
@@ -1063,6 +1962,95 @@ public class XEP398IQHandler implements PacketInterceptor
         }
     } 
 
+    /**
+     * decode a base64 image and check its header
+     * @return the image bytes or null if the data is not a valid image
+     * */
+    private static byte[] decodeImage(String base64data)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            byte[] image = Base64.getDecoder().decode(base64data.trim());
+            return ImageProbe.probe(image)!=null?image:null;
+        }
+        catch (IllegalArgumentException e)
+        {
+            Log.debug("decodeImage: invalid base64 data");
+            return null;
+        }
+        finally
+        {
+            AvatarMetrics.record(AvatarMetrics.Operation.IMAGE_DECODE, start);
+        }
+    }
+
+    /**
+     * compare the hash of an image with the hash of the avatar the user already has
+     * @param jid the user
+     * @param image the raw image bytes
+     * @return true if the user already has exactly this avatar
+     * */
+    private boolean isUnchanged(JID jid, byte[] image)
+    {
+        String stored = null;
+        String storedShrinked = null;
+        AvatarHashIndex.Entry entry = this.plugin.getHashIndex().get(jid);
+        if (entry!=null)
+        {
+            stored = entry.getMainHash();
+            storedShrinked = entry.getMainHashShrinked();
+        }
+        else
+        {
+            AvatarCacheEntry cached = this.plugin.getAvatarCache().get(jid);
+            if (cached!=null)
+            {
+                stored = AvatarHashIndex.byteArray2Hex(cached.getMainHash());
+                storedShrinked = AvatarHashIndex.byteArray2Hex(cached.getShrinkedHash());
+            }
+        }
+
+        if (stored==null)
+        {
+            return false;
+        }
+
+        // a vcard read back from the server may contain the shrinked image of the current avatar
+        String hash = AvatarIngestion.sha1Hex(image);
+        if (stored.equalsIgnoreCase(hash)||(storedShrinked!=null&&storedShrinked.equalsIgnoreCase(hash)))
+        {
+            unchangedUpdates.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public SingleFlightLoader<Avatar> getAvatarLoader()
+    {
+        return avatarLoader;
+    }
+
+    /**
+     * @return the number of vcard and storage:client:avatar updates that were skipped because the avatar did not change
+     * */
+    public long getUnchangedUpdates()
+    {
+        return unchangedUpdates.get();
+    }
+
+    /**
+     * queue the removal of all avatars of a user
+     * */
+    private void removeAvatarAsync(final JID jid)
+    {
+        this.plugin.getConversionExecutor().executeCoalesced(jid, () -> {
+            avatarRemoved(jid);
+            deleteVCardAvatar(jid);
+            deletePEPAvatar(jid);
+        }, XEP398Plugin.XMPP_CONVERSION_COALESCEWINDOW.getValue());
+    }
+
     private static IQ getError(JID to, String namespace, String type, String code, String errorelement, String errornamespace) {
         IQ result= new IQ(Type.error);
         result.setTo(to);
@@ -1088,6 +2076,12 @@ public class XEP398IQHandler implements PacketInterceptor
             return info;
         }
 
+        @Override
+        public void process(Packet packet)
+        {
+            timed(AvatarMetrics.Operation.IQ_JABBER_IQ_AVATAR, () -> super.process(packet));
+        }
+
         @Override
         public IQ handleIQ(IQ iq) throws UnauthorizedException 
         {
@@ -1124,6 +2118,12 @@ public class XEP398IQHandler implements PacketInterceptor
             return info;
         }
 
+        @Override
+        public void process(Packet packet)
+        {
+            timed(AvatarMetrics.Operation.IQ_STORAGE_CLIENT_AVATAR, () -> super.process(packet));
+        }
+
         @Override
         public IQ handleIQ(IQ iq) throws UnauthorizedException 
         {
@@ -1147,24 +2147,54 @@ public class XEP398IQHandler implements PacketInterceptor
                            Element data = null;
                            if ((data=query.element("data"))!=null&&data.hasContent()) {
 
-                                Avatar avatar = buildAvatar(data.getText(), data.attributeValue("mimetype"));
-                                this.plugin.getCache().put(iq.getFrom().toBareJID(), avatar.toString());
+                                // only the cheap header check is done here, the conversion runs on the conversion executor
+                                final byte[] image = decodeImage(data.getText());
+                                if (image==null)
+                                {
+                                    AvatarMetrics.increment(AvatarMetrics.Counter.INVALID_IMAGE);
+                                    return getError(iq.getFrom(),NAMESPACE_STORAGE_CLIENT_AVATAR,"modify","400","bad-request","urn:ietf:params:xml:ns:xmpp-stanzas");
+                                }
+                                final String mimetype = data.attributeValue("mimetype");
+                                final JID from = iq.getFrom();
+                                this.plugin.getConversionExecutor().executeCoalesced(from, () -> {
+                                    boolean traced = AvatarTrace.begin(AvatarTrace.Trigger.XEP0008_SET, from);
+                                    try
+                                    {
+                                        // compared when the update is executed, an earlier update may still be pending
+                                        if (isUnchanged(from, image))
+                                        {
+                                            Log.debug("Avatar of "+from.toBareJID()+" did not change, skipping conversion");
+                                            return;
+                                        }
+                                        Avatar avatar = buildAvatar(image, mimetype);
+                                        if (avatar.getMainHash()==null)
+                                        {
+                                            AvatarMetrics.increment(AvatarMetrics.Counter.INVALID_IMAGE);
+                                            Log.warn("Ignoring invalid storage:client:avatar of "+from.toBareJID());
+                                            return;
+                                        }
+                                        avatarChanged(from, avatar);
 
-                                routeDataToServer(iq.getFrom(), avatar);
-                                routeMetaDataToServer(iq.getFrom(), avatar);
+                                        publishAvatarToPEP(from, avatar);
+                                        AvatarMetrics.increment(AvatarMetrics.Counter.CONVERSION_XEP0008_TO_PEP);
+                                    }
+                                    finally
+                                    {
+                                        if (traced)
+                                        {
+                                            AvatarTrace.end();
+                                        }
+                                    }
+                                }, XEP398Plugin.XMPP_CONVERSION_COALESCEWINDOW.getValue());
                                 result=getResult(iq.getTo(),iq.getFrom(),NAMESPACE_JABBER_IQ_AVATAR,iq.getID());
                            }
                            else {
-                               this.plugin.getCache().remove(iq.getFrom().toBareJID());
-                               deleteVCardAvatar(iq.getFrom());
-                               deletePEPAvatar(iq.getFrom());
+                               removeAvatarAsync(iq.getFrom());
                                result=getResult(iq.getTo(),iq.getFrom(),NAMESPACE_JABBER_IQ_AVATAR,iq.getID());
                            }
                        }
                        else {
-                           this.plugin.getCache().remove(iq.getFrom().toBareJID());
-                           deleteVCardAvatar(iq.getFrom());
-                           deletePEPAvatar(iq.getFrom());
+                           removeAvatarAsync(iq.getFrom());
                            result=getResult(iq.getTo(),iq.getFrom(),NAMESPACE_JABBER_IQ_AVATAR,iq.getID());
                        }
                    }
@@ -16,17 +16,26 @@
 package org.igniterealtime.openfire.plugin.xep398;
 
 import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
+import java.util.TimerTask;
 
 import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.container.Plugin;
 import org.jivesoftware.openfire.container.PluginManager;
+import org.jivesoftware.openfire.event.SessionEventDispatcher;
 import org.jivesoftware.openfire.interceptor.InterceptorManager;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.SystemProperty;
+import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
 
 /**
  * An Openfire plugin that integrates XEP-0398.
@@ -70,24 +79,293 @@ public class XEP398Plugin implements Plugin
             .setDynamic(true)
             .build();
 
-    private Cache<String, String> cache = null;
+    public static final SystemProperty<Boolean> XMPP_INGRESSSTAMPING_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+            .setKey("xmpp.xep0398.ingressstamping")
+            .setPlugin( "xep398" )
+            .setDefaultValue(false)
+            .setDynamic(true)
+            .build();
+
+    public static final SystemProperty<Integer> XMPP_CONVERSION_WORKERS = SystemProperty.Builder.ofType(Integer.class)
+            .setKey("xmpp.xep0398.conversion.workers")
+            .setPlugin( "xep398" )
+            .setDefaultValue(2)
+            .setMinValue(1)
+            .setDynamic(false)
+            .build();
+
+    public static final SystemProperty<Integer> XMPP_CONVERSION_QUEUESIZE = SystemProperty.Builder.ofType(Integer.class)
+            .setKey("xmpp.xep0398.conversion.queuesize")
+            .setPlugin( "xep398" )
+            .setDefaultValue(1000)
+            .setMinValue(1)
+            .setDynamic(false)
+            .build();
+
+    public static final SystemProperty<Duration> XMPP_CONVERSION_COALESCEWINDOW = SystemProperty.Builder.ofType(Duration.class)
+            .setKey("xmpp.xep0398.conversion.coalescewindow")
+            .setPlugin( "xep398" )
+            .setDefaultValue(Duration.ofMillis(500))
+            .setChronoUnit(ChronoUnit.MILLIS)
+            .setDynamic(true)
+            .build();
+
+    public static final SystemProperty<Duration> XMPP_LOAD_TIMEOUT = SystemProperty.Builder.ofType(Duration.class)
+            .setKey("xmpp.xep0398.loadtimeout")
+            .setPlugin( "xep398" )
+            .setDefaultValue(Duration.ofSeconds(5))
+            .setChronoUnit(ChronoUnit.MILLIS)
+            .setDynamic(true)
+            .build();
+
+    public static final SystemProperty<Long> XMPP_BLOBSTORE_SIZE = SystemProperty.Builder.ofType(Long.class)
+            .setKey("xmpp.xep0398.blobstore.size")
+            .setPlugin( "xep398" )
+            .setDefaultValue(20971520L)
+            .setMinValue(0L)
+            .setDynamic(true)
+            .addListener(size -> updateBlobStoreSize())
+            .build();
+
+    public static final SystemProperty<Double> XMPP_BLOBSTORE_HEAPFRACTION = SystemProperty.Builder.ofType(Double.class)
+            .setKey("xmpp.xep0398.blobstore.heapfraction")
+            .setPlugin( "xep398" )
+            .setDefaultValue(0.0)
+            .setMinValue(0.0)
+            .setMaxValue(0.5)
+            .setDynamic(true)
+            .addListener(fraction -> updateBlobStoreSize())
+            .build();
+
+    public static final SystemProperty<Long> XMPP_BLOBSTORE_MAXENTRYSIZE = SystemProperty.Builder.ofType(Long.class)
+            .setKey("xmpp.xep0398.blobstore.maxentrysize")
+            .setPlugin( "xep398" )
+            .setDefaultValue(262144L)
+            .setMinValue(0L)
+            .setDynamic(true)
+            .addListener(size -> updateBlobStoreSize())
+            .build();
+
+    public static final SystemProperty<Boolean> XMPP_BLOBSTORE_OFFHEAP = SystemProperty.Builder.ofType(Boolean.class)
+            .setKey("xmpp.xep0398.blobstore.offheap")
+            .setPlugin( "xep398" )
+            .setDefaultValue(false)
+            .setDynamic(false)
+            .build();
+
+    public static final SystemProperty<Long> XMPP_BLOBSTORE_OFFHEAPSIZE = SystemProperty.Builder.ofType(Long.class)
+            .setKey("xmpp.xep0398.blobstore.offheapsize")
+            .setPlugin( "xep398" )
+            .setDefaultValue(20971520L)
+            .setMinValue(0L)
+            .setDynamic(true)
+            .addListener(size -> updateBlobStoreSize())
+            .build();
+
+    public static final SystemProperty<Boolean> XMPP_SEGMENTSTORE_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+            .setKey("xmpp.xep0398.segmentstore.enabled")
+            .setPlugin( "xep398" )
+            .setDefaultValue(false)
+            .setDynamic(false)
+            .build();
+
+    public static final SystemProperty<Long> XMPP_SEGMENTSTORE_SEGMENTSIZE = SystemProperty.Builder.ofType(Long.class)
+            .setKey("xmpp.xep0398.segmentstore.segmentsize")
+            .setPlugin( "xep398" )
+            .setDefaultValue(16777216L)
+            .setMinValue(1048576L)
+            .setDynamic(false)
+            .build();
+
+    public static final SystemProperty<Long> XMPP_LOCALCACHE_SIZE = SystemProperty.Builder.ofType(Long.class)
+            .setKey("xmpp.xep0398.localcache.size")
+            .setPlugin( "xep398" )
+            .setDefaultValue(4194304L)
+            .setMinValue(0L)
+            .setDynamic(true)
+            .addListener(size -> {
+                XEP398Plugin plugin = XEP398Plugin.instance;
+                if (plugin!=null&&size!=null)
+                {
+                    plugin.getAvatarCache().getLocal().setMaxSize(size);
+                }
+            })
+            .build();
+
+    public static final SystemProperty<Long> XMPP_FRAGMENTCACHE_SIZE = SystemProperty.Builder.ofType(Long.class)
+            .setKey("xmpp.xep0398.fragmentcache.size")
+            .setPlugin( "xep398" )
+            .setDefaultValue(8388608L)
+            .setMinValue(0L)
+            .setDynamic(true)
+            .addListener(size -> {
+                XEP398Plugin plugin = XEP398Plugin.instance;
+                if (plugin!=null&&size!=null)
+                {
+                    plugin.getFragmentCache().setMaxSize(size);
+                }
+            })
+            .build();
+
+    public static final SystemProperty<Integer> XMPP_WARMUP_USERS = SystemProperty.Builder.ofType(Integer.class)
+            .setKey("xmpp.xep0398.warmup.users")
+            .setPlugin( "xep398" )
+            .setDefaultValue(0)
+            .setMinValue(0)
+            .setDynamic(false)
+            .build();
+
+    public static final SystemProperty<Duration> XMPP_WARMUP_PAUSE = SystemProperty.Builder.ofType(Duration.class)
+            .setKey("xmpp.xep0398.warmup.pause")
+            .setPlugin( "xep398" )
+            .setDefaultValue(Duration.ofMillis(50))
+            .setChronoUnit(ChronoUnit.MILLIS)
+            .setDynamic(true)
+            .build();
+
+    public static final SystemProperty<Integer> XMPP_MIGRATION_WORKERS = SystemProperty.Builder.ofType(Integer.class)
+            .setKey("xmpp.xep0398.migration.workers")
+            .setPlugin( "xep398" )
+            .setDefaultValue(2)
+            .setMinValue(1)
+            .setDynamic(true)
+            .build();
+
+    public static final SystemProperty<Integer> XMPP_MIGRATION_RATE = SystemProperty.Builder.ofType(Integer.class)
+            .setKey("xmpp.xep0398.migration.rate")
+            .setPlugin( "xep398" )
+            .setDefaultValue(20)
+            .setMinValue(1)
+            .setDynamic(true)
+            .build();
+
+    public static final SystemProperty<Duration> XMPP_TRACE_THRESHOLD = SystemProperty.Builder.ofType(Duration.class)
+            .setKey("xmpp.xep0398.trace.threshold")
+            .setPlugin( "xep398" )
+            .setDefaultValue(Duration.ofSeconds(1))
+            .setChronoUnit(ChronoUnit.MILLIS)
+            .setDynamic(true)
+            .addListener(AvatarTrace::setThreshold)
+            .build();
+
+    private static XEP398Plugin instance = null;
+
+    private AvatarCache cache = null;
+
+    private AvatarHashIndex hashIndex = new AvatarHashIndex();
+
+    private NegativeAvatarCache negativeCache = null;
+
+    //hash -> image, replicates the images of the blob store to the other nodes of a cluster
+    private Cache<String, AvatarImageEntry> imageCache = null;
+
+    private AvatarBlobStore blobStore = null;
+
+    private AvatarSegmentStore segmentStore = null;
+
+    private StanzaFragmentCache fragmentCache = null;
+
+    private TimerTask compactionTask = null;
+
+    private AvatarWarmup warmup = null;
+
+    private AvatarMigrationJob migrationJob = null;
+
+    private ConversionExecutor conversionExecutor = null;
 
     @Override
     public void initializePlugin( PluginManager manager, File pluginDirectory )
     {
-        SystemProperty.removePropertiesForPlugin("xep398");
         Log.info("Initialize XEP-0398 Plugin enabled:"+XMPP_AVATARCONVERSION_ENABLED.getDisplayValue()+" store only in pep="+XMPP_DELETEOTHERAVATAR_ENABLED.getDisplayValue());
+        if (JiveGlobals.getLongProperty("cache.XEP398v2.maxLifetime", 0)==0)
+        {
+            JiveGlobals.setProperty("cache.XEP398v2.maxLifetime","3600000");
+        }
+        if (JiveGlobals.getLongProperty("cache.XEP398v2.size", 0)==0)
+        {
+            JiveGlobals.setProperty("cache.XEP398v2.size","20971520");
+        }
+        // entries of former plugin versions were JSON strings in the XEP398 cache, which is left
+        // to nodes that still run such a version
+        cache = new AvatarCache(CacheFactory.createCache("XEP398v2"), XMPP_LOCALCACHE_SIZE.getValue());
+        hashIndex.setMaxLifetime(JiveGlobals.getLongProperty("cache.XEP398v2.maxLifetime", 3600000));
+
+        if (JiveGlobals.getLongProperty("cache.XEP398Negative.maxLifetime", 0)==0)
+        {
+            JiveGlobals.setProperty("cache.XEP398Negative.maxLifetime","300000");
+        }
+        if (JiveGlobals.getLongProperty("cache.XEP398Negative.size", 0)==0)
+        {
+            JiveGlobals.setProperty("cache.XEP398Negative.size","1048576");
+        }
+        negativeCache = new NegativeAvatarCache(CacheFactory.createCache("XEP398Negative"));
+
+        if (JiveGlobals.getLongProperty("cache.XEP398Images.maxLifetime", 0)==0)
+        {
+            JiveGlobals.setProperty("cache.XEP398Images.maxLifetime","3600000");
+        }
+        if (JiveGlobals.getLongProperty("cache.XEP398Images.size", 0)==0)
+        {
+            JiveGlobals.setProperty("cache.XEP398Images.size","20971520");
+        }
+        imageCache = CacheFactory.createCache("XEP398Images");
+
+        boolean offHeap = XMPP_BLOBSTORE_OFFHEAP.getValue();
+        blobStore = new AvatarBlobStore(getBlobStoreBudget(offHeap), offHeap);
+        blobStore.setMaxEntrySize(XMPP_BLOBSTORE_MAXENTRYSIZE.getValue());
+        blobStore.setOwnerLifetime(hashIndex.getMaxLifetime());
+        fragmentCache = new StanzaFragmentCache(XMPP_FRAGMENTCACHE_SIZE.getValue());
+        instance = this;
+        Log.info("Avatar blob store budget: "+blobStore.getMaxSize()+" bytes"+(blobStore.isOffHeap()?" off-heap":""));
+
+        if (XMPP_SEGMENTSTORE_ENABLED.getValue())
+        {
+            try
+            {
+                segmentStore = new AvatarSegmentStore(new File(pluginDirectory, "avatars"), XMPP_SEGMENTSTORE_SEGMENTSIZE.getValue());
+                compactionTask = new TimerTask() {
+                    @Override
+                    public void run() {
+                        try
+                        {
+                            segmentStore.compactIfNeeded();
+                        }
+                        catch (IOException e)
+                        {
+                            Log.error("Could not compact avatar store: "+e.getMessage(), e);
+                        }
+                    }
+                };
+                TaskEngine.getInstance().schedule(compactionTask, Duration.ofHours(1), Duration.ofHours(1));
+            }
+            catch (IOException e)
+            {
+                Log.error("Could not open avatar store, avatars are only kept in memory: "+e.getMessage(), e);
+                segmentStore = null;
+            }
+        }
+
+        conversionExecutor = new ConversionExecutor(XMPP_CONVERSION_WORKERS.getValue(), XMPP_CONVERSION_QUEUESIZE.getValue());
+
         this.xep398Handler = new XEP398IQHandler(this);
         InterceptorManager.getInstance().addInterceptor(this.xep398Handler);
-        if (JiveGlobals.getLongProperty("cache.XEP398.maxLifetime", 0)==0)
+
+        warmup = new AvatarWarmup(this.xep398Handler, conversionExecutor);
+        SessionEventDispatcher.addListener(warmup);
+        if (XMPP_AVATARCONVERSION_ENABLED.getValue())
         {
-            JiveGlobals.setProperty("cache.XEP398.maxLifetime","3600000");
+            warmup.startWarmup(XMPP_WARMUP_USERS.getValue(), XMPP_WARMUP_PAUSE.getValue());
         }
-        if (JiveGlobals.getLongProperty("cache.XEP398.size", 0)==0)
+
+        migrationJob = new AvatarMigrationJob(this.xep398Handler, conversionExecutor);
+        if (!ClusterManager.isClusteringStarted()||ClusterManager.isSeniorClusterMember())
         {
-            JiveGlobals.setProperty("cache.XEP398.size","20971520");
+            migrationJob.resumeAfterRestart();
         }
-        cache = CacheFactory.createCache("XEP398");
+
+        AvatarTrace.setThreshold(XMPP_TRACE_THRESHOLD.getValue());
+        AvatarMetrics.getInstance().register();
+        AvatarStatistic.addStatistics();
 
         XMPPServer.getInstance().getIQDiscoInfoHandler().addServerFeature(NAMESPACE_XEP398);
         XMPPServer.getInstance().getIQDiscoInfoHandler().addServerFeature(XEP398IQHandler.NAMESPACE_JABBER_IQ_AVATAR);
@@ -99,13 +377,185 @@ public class XEP398Plugin implements Plugin
         Log.info("Destroy XEP-0398 Plugin");
         XMPPServer.getInstance().getIQDiscoInfoHandler().removeServerFeature(NAMESPACE_XEP398);
         XMPPServer.getInstance().getIQDiscoInfoHandler().removeServerFeature(XEP398IQHandler.NAMESPACE_JABBER_IQ_AVATAR);
+        AvatarStatistic.removeStatistics();
+        AvatarMetrics.getInstance().unregister();
+        this.migrationJob.shutdown();
+        SessionEventDispatcher.removeListener(this.warmup);
+        this.warmup.stop();
         InterceptorManager.getInstance().removeInterceptor(this.xep398Handler);
         this.xep398Handler.removeHandlers();
         this.xep398Handler = null;
+        this.conversionExecutor.shutdown();
+        if (this.segmentStore!=null)
+        {
+            TaskEngine.getInstance().cancelScheduledTask(this.compactionTask);
+            this.compactionTask = null;
+            this.segmentStore.close();
+            this.segmentStore = null;
+        }
+        instance = null;
+        this.blobStore.clear();
+        this.fragmentCache.clear();
+        this.hashIndex.clear();
+        // the properties stay registered while the plugin runs, Openfire finds their listeners in the registry
+        SystemProperty.removePropertiesForPlugin("xep398");
     }
 
-    public Cache<String, String> getCache() {
+    /**
+     * @return the size of the blob store, xmpp.xep0398.blobstore.offheapsize for off-heap storage, else a fraction of the maximum heap if xmpp.xep0398.blobstore.heapfraction is set
+     * */
+    private static long getBlobStoreBudget(boolean offHeap)
+    {
+        if (offHeap)
+        {
+            return XMPP_BLOBSTORE_OFFHEAPSIZE.getValue();
+        }
+        Double fraction = XMPP_BLOBSTORE_HEAPFRACTION.getValue();
+        if (fraction!=null&&fraction>0)
+        {
+            return (long) (Runtime.getRuntime().maxMemory()*fraction);
+        }
+        return XMPP_BLOBSTORE_SIZE.getValue();
+    }
+
+    private static void updateBlobStoreSize()
+    {
+        XEP398Plugin plugin = XEP398Plugin.instance;
+        if (plugin!=null)
+        {
+            plugin.getBlobStore().setMaxSize(getBlobStoreBudget(plugin.getBlobStore().isOffHeap()));
+            plugin.getBlobStore().setMaxEntrySize(XMPP_BLOBSTORE_MAXENTRYSIZE.getValue());
+        }
+    }
+
+    static XEP398Plugin getInstance() {
+        return instance;
+    }
+
+    public AvatarCache getAvatarCache() {
         return cache;
     }
 
+    /**
+     * drop everything this node keeps about the avatar of a user, called by {@link AvatarInvalidationTask}
+     * */
+    void invalidateLocal(JID user) {
+        XEP398IQHandler handler = this.xep398Handler;
+        if (handler!=null)
+        {
+            handler.invalidateLocal(user);
+        }
+    }
+
+    public AvatarHashIndex getHashIndex() {
+        return hashIndex;
+    }
+
+    public NegativeAvatarCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    /**
+     * @return the clustered cache of the images by their hash
+     * */
+    public Cache<String, AvatarImageEntry> getImageCache() {
+        return imageCache;
+    }
+
+    public AvatarBlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * @return the persistent avatar store or null if it is disabled
+     * */
+    public AvatarSegmentStore getSegmentStore() {
+        return segmentStore;
+    }
+
+    public StanzaFragmentCache getFragmentCache() {
+        return fragmentCache;
+    }
+
+    public AvatarWarmup getWarmup() {
+        return warmup;
+    }
+
+    public AvatarMigrationJob getMigrationJob() {
+        return migrationJob;
+    }
+
+    public ConversionExecutor getConversionExecutor() {
+        return conversionExecutor;
+    }
+
+    /**
+     * empty the avatar caches, the blob store, the hash index, the avatar store and the ingress
+     * stamps of this node. The clustered caches are shared with the other nodes and are kept.
+     * Avatars are loaded again from PEP or the vCard when they are needed.
+     * */
+    public void purgeCaches() {
+        cache.clearLocal();
+        blobStore.clear();
+        fragmentCache.clear();
+        hashIndex.clear();
+        final AvatarSegmentStore segmentStore = this.segmentStore;
+        if (segmentStore!=null)
+        {
+            segmentStore.clear();
+        }
+        final XEP398IQHandler handler = this.xep398Handler;
+        if (handler!=null)
+        {
+            handler.clearStamps();
+        }
+        Log.info("Avatar caches of this node purged");
+    }
+
+    /**
+     * load the avatar of a user into the caches in the background
+     * */
+    public void warmUp(JID user) {
+        final XEP398IQHandler handler = this.xep398Handler;
+        if (handler!=null)
+        {
+            conversionExecutor.execute(user, () -> handler.warmUp(user));
+        }
+    }
+
+    /**
+     * load the avatars of a number of users into the caches in the background, one user at a time
+     * with the pause of the startup warm-up in between
+     * */
+    public void warmUp(Collection<JID> users) {
+        final AvatarWarmup warmup = this.warmup;
+        if (warmup!=null)
+        {
+            warmup.warmUp(users, XMPP_WARMUP_PAUSE.getValue());
+        }
+    }
+
+    /**
+     * convert the avatar of a user again in the background, see {@link XEP398IQHandler#reconvert(JID)}
+     * */
+    public void reconvert(JID user) {
+        final XEP398IQHandler handler = this.xep398Handler;
+        if (handler!=null)
+        {
+            conversionExecutor.execute(user, () -> {
+                if (handler.reconvert(user))
+                {
+                    Log.info("Reconverted avatar of "+user.toBareJID());
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the packet interceptor or null if the plugin is stopped
+     * */
+    public XEP398IQHandler getHandler() {
+        return xep398Handler;
+    }
+
 }
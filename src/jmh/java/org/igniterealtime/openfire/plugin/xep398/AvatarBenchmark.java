@@ -0,0 +1,107 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+
+import org.jivesoftware.openfire.vcard.PhotoResizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the per avatar work of the plugin: ingestion of an uploaded image (decode,
+ * hash and shrink), the JSON form used by the cache, hashing and shrinking on their own.
+ * Every benchmark runs for each format and size of the generated image corpus.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AvatarBenchmark {
+
+    @Param({"png", "jpeg", "gif"})
+    public String format;
+
+    @Param({"1024", "10240", "102400", "1048576"})
+    public int size;
+
+    private byte[] image;
+    private String base64;
+    private String json;
+    private Avatar avatar;
+    private byte[] digest;
+    private ImageWriter writer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        image = ImageCorpus.create(format, size);
+        base64 = Base64.getEncoder().encodeToString(image);
+
+        avatar = new Avatar();
+        avatar.getMetadata().setType(ImageCorpus.mimeType(format));
+        avatar.setImage(base64);
+        json = avatar.toString();
+
+        digest = MessageDigest.getInstance("SHA-1").digest(image);
+
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByMIMEType(ImageCorpus.mimeType(format));
+        writer = it.next();
+    }
+
+    @Benchmark
+    public Avatar setImage()
+    {
+        Avatar result = new Avatar();
+        result.getMetadata().setType(ImageCorpus.mimeType(format));
+        result.setImage(base64);
+        return result;
+    }
+
+    @Benchmark
+    public Avatar parse()
+    {
+        return Avatar.parse(json);
+    }
+
+    @Benchmark
+    public String toJson()
+    {
+        return avatar.toString();
+    }
+
+    @Benchmark
+    public String sha1Hash() throws NoSuchAlgorithmException
+    {
+        return Avatar.getSHA1Hash(image);
+    }
+
+    @Benchmark
+    public String byteArray2Hex()
+    {
+        return Avatar.byteArray2Hex(digest);
+    }
+
+    @Benchmark
+    public byte[] shrink() throws Exception
+    {
+        return PhotoResizer.cropAndShrink(image, PhotoResizer.PROPERTY_TARGETDIMENSION_DEFAULT, writer);
+    }
+}
@@ -0,0 +1,79 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Generates the avatar images for the benchmarks instead of shipping binary files.
+ * The images are filled with seeded noise, so that the encoded size grows with the
+ * dimension for every format and the same parameters always give the same image.
+ */
+final class ImageCorpus {
+
+    private ImageCorpus()
+    {
+    }
+
+    /**
+     * @param format the ImageIO format name, e.g. png, jpeg or gif
+     * @param targetSize the minimum size of the encoded image in bytes
+     * @return the smallest square noise image of the format that is at least targetSize bytes
+     * */
+    static byte[] create(String format, int targetSize) throws IOException
+    {
+        int low = 1;
+        int high = 16;
+        byte[] image = encode(format, high);
+        while (image.length<targetSize)
+        {
+            low = high;
+            high *= 2;
+            image = encode(format, high);
+        }
+
+        // narrow the dimension down, the encoded size grows monotonically with the noise
+        while (high-low>1)
+        {
+            int middle = (low+high)/2;
+            byte[] candidate = encode(format, middle);
+            if (candidate.length<targetSize)
+            {
+                low = middle;
+            }
+            else
+            {
+                high = middle;
+                image = candidate;
+            }
+        }
+        return image;
+    }
+
+    private static byte[] encode(String format, int dimension) throws IOException
+    {
+        Random random = new Random(dimension);
+        BufferedImage img = new BufferedImage(dimension, dimension, BufferedImage.TYPE_INT_RGB);
+        for (int y=0;y<dimension;y++)
+        {
+            for (int x=0;x<dimension;x++)
+            {
+                img.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(img, format, out))
+        {
+            throw new IOException("No image writer for "+format);
+        }
+        return out.toByteArray();
+    }
+
+    static String mimeType(String format)
+    {
+        return "image/"+format;
+    }
+}
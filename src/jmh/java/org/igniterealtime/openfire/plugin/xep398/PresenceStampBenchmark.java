@@ -0,0 +1,87 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+/**
+ * Benchmarks the work done for every outgoing available presence: the lookup in the
+ * hash index and writing the vcard-temp:x:update hash. The interceptor itself needs a
+ * running server, so the presence is stamped through the same code it calls.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PresenceStampBenchmark {
+
+    @Param({"1000", "100000"})
+    public int users;
+
+    /**
+     * true if the presence of the client already carries a (different) photo hash
+     * */
+    @Param({"false", "true"})
+    public boolean clientHash;
+
+    private final AvatarHashIndex index = new AvatarHashIndex();
+    private JID sender;
+    private Presence template;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        Avatar avatar = new Avatar();
+        avatar.getMetadata().setType("image/png");
+        avatar.apply(AvatarIngestion.ingest(ImageCorpus.create("png", 10240), "image/png"));
+        for (int i=0;i<users;i++)
+        {
+            index.put(new JID("user"+i, "example.org", null), avatar);
+        }
+
+        sender = new JID("user"+(users/2), "example.org", "resource");
+        template = new Presence();
+        template.setFrom(sender);
+        template.setTo(new JID("contact", "example.org", "resource"));
+        if (clientHash)
+        {
+            template.addChildElement("x", XEP398IQHandler.NAMESPACE_VCARD_TEMP_X_UPDATE)
+                .addElement("photo").setText("0000000000000000000000000000000000000000");
+        }
+    }
+
+    @Benchmark
+    public String stamp()
+    {
+        Presence presence = template.createCopy();
+        return XEP398IQHandler.stamp(presence, index.get(presence.getFrom()), false, false);
+    }
+
+    @Benchmark
+    public String stampShrinked()
+    {
+        Presence presence = template.createCopy();
+        return XEP398IQHandler.stamp(presence, index.get(presence.getFrom()), true, true);
+    }
+
+    @Benchmark
+    public Presence copyOnly()
+    {
+        return template.createCopy();
+    }
+}
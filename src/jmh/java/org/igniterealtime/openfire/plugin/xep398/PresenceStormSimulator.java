@@ -0,0 +1,505 @@
+package org.igniterealtime.openfire.plugin.xep398;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.jivesoftware.openfire.IQRouter;
+import org.jivesoftware.openfire.PresenceManager;
+import org.jivesoftware.openfire.PresenceRouter;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.XMPPServerInfo;
+import org.jivesoftware.openfire.pep.IQPEPHandler;
+import org.jivesoftware.openfire.pep.PEPService;
+import org.jivesoftware.openfire.pep.PEPServiceManager;
+import org.jivesoftware.openfire.pubsub.LeafNode;
+import org.jivesoftware.openfire.pubsub.PublishedItem;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.openfire.vcard.VCardManager;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.cache.Cache;
+import org.mockito.AdditionalAnswers;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+/**
+ * Replays presence storms against the packet interceptor of the plugin. Openfire is replaced
+ * by a stub server (installed with {@link XMPPServer#setInstance}) whose PEP services, vCards
+ * and presence router are kept in memory, so every stanza takes the same path as on a real
+ * server: {@link XEP398IQHandler#interceptPacket}, the hash index, the caches, the loaders
+ * and the conversion workers.
+ * <p>
+ * Scenarios:
+ * <ul>
+ * <li>login: every user sends an available presence, the router delivers a copy to each roster contact</li>
+ * <li>change: a part of the users publishes a new avatar to PEP, measured until the presence update was delivered to the roster</li>
+ * <li>vcard: contacts fetch random vCards, the avatar is written into the result on its way out</li>
+ * </ul>
+ * The caches start empty, so the login scenario includes loading the avatars from PEP.
+ * For every scenario p50/p99 latency, throughput and allocated bytes per stanza are reported.
+ * <p>
+ * Run with: mvn -Pbenchmarks test-compile exec:exec -Dbenchmark.main=org.igniterealtime.openfire.plugin.xep398.PresenceStormSimulator -Dbenchmark.args="users=10000 roster=50"
+ * <p>
+ * Arguments (key=value): users, roster, avatarSize (bytes), withoutAvatar (percent), variants
+ * (distinct images), changes (percent of users), fetches, threads, ingress (stamp presences at
+ * ingress, true|false), localCache (bytes), blobStore (bytes)
+ */
+public class PresenceStormSimulator {
+
+    private static final String DOMAIN = "example.org";
+
+    //a change that was not delivered within this time is counted as lost
+    private static final long CHANGE_TIMEOUT = 10000;
+
+    private final int users;
+    private final int roster;
+    private final int avatarSize;
+    private final int withoutAvatar;
+    private final int variants;
+    private final int changes;
+    private final int fetches;
+    private final int threads;
+
+    private final AvatarHashIndex index = new AvatarHashIndex();
+    private final AvatarCache cache;
+    private final AvatarBlobStore blobStore;
+    private final ConversionExecutor executor;
+
+    private final XEP398IQHandler handler;
+
+    //bare jid -> avatar nodes of the user in the stub PEP service
+    private final Map<String, StubPEP> peps = new ConcurrentHashMap<String, StubPEP>();
+
+    //username -> vcard in the stub vcard manager
+    private final Map<String, Element> vcards = new ConcurrentHashMap<String, Element>();
+
+    //bare jid -> waiting for the presence update after an avatar change
+    private final Map<String, CountDownLatch> changing = new ConcurrentHashMap<String, CountDownLatch>();
+
+    private final AtomicLong lostChanges = new AtomicLong();
+
+    private PEPAvatar[] avatars;
+
+    public PresenceStormSimulator(Map<String, String> config) throws Exception
+    {
+        users = Integer.parseInt(config.getOrDefault("users", "10000"));
+        roster = Integer.parseInt(config.getOrDefault("roster", "50"));
+        avatarSize = Integer.parseInt(config.getOrDefault("avatarSize", "10240"));
+        withoutAvatar = Integer.parseInt(config.getOrDefault("withoutAvatar", "30"));
+        variants = Integer.parseInt(config.getOrDefault("variants", "64"));
+        changes = Integer.parseInt(config.getOrDefault("changes", "5"));
+        fetches = Integer.parseInt(config.getOrDefault("fetches", "100000"));
+        threads = Integer.parseInt(config.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+        configure(Boolean.parseBoolean(config.getOrDefault("ingress", "true")));
+        installServer();
+
+        cache = new AvatarCache(mapCache(), Long.parseLong(config.getOrDefault("localCache", String.valueOf(4*1024*1024))));
+        blobStore = new AvatarBlobStore(Long.parseLong(config.getOrDefault("blobStore", String.valueOf(20*1024*1024))));
+        executor = new ConversionExecutor(XEP398Plugin.XMPP_CONVERSION_WORKERS.getValue(), XEP398Plugin.XMPP_CONVERSION_QUEUESIZE.getValue());
+
+        XEP398Plugin plugin = mock(XEP398Plugin.class);
+        when(plugin.getAvatarCache()).thenReturn(cache);
+        when(plugin.getNegativeCache()).thenReturn(new NegativeAvatarCache(mapCache()));
+        when(plugin.getHashIndex()).thenReturn(index);
+        when(plugin.getBlobStore()).thenReturn(blobStore);
+        when(plugin.getFragmentCache()).thenReturn(new StanzaFragmentCache(XEP398Plugin.XMPP_FRAGMENTCACHE_SIZE.getValue()));
+        when(plugin.getConversionExecutor()).thenReturn(executor);
+        handler = new XEP398IQHandler(plugin);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> config = new HashMap<String, String>();
+        for (String arg : args)
+        {
+            int separator = arg.indexOf('=');
+            if (separator>0)
+            {
+                config.put(arg.substring(0, separator), arg.substring(separator+1));
+            }
+        }
+
+        PresenceStormSimulator simulator = new PresenceStormSimulator(config);
+        try
+        {
+            simulator.populate();
+            simulator.run("login", simulator.users, simulator::login);
+            simulator.run("change", simulator.users*simulator.changes/100, simulator::change);
+            simulator.run("vcard", simulator.fetches, simulator::fetch);
+            System.out.println(String.format("blob store: %d blobs, %d bytes, %d hits, %d misses, %d evictions; local cache: %d entries, %d hits, %d misses, %d evictions; conversions: %d rejected, %d changes lost",
+                    simulator.blobStore.getBlobCount(), simulator.blobStore.getSize(), simulator.blobStore.getHits(), simulator.blobStore.getMisses(), simulator.blobStore.getEvictions(),
+                    simulator.cache.getLocal().getEntryCount(), simulator.cache.getLocal().getHits(), simulator.cache.getLocal().getMisses(), simulator.cache.getLocal().getEvictions(),
+                    simulator.executor.getRejectedCount(), simulator.lostChanges.get()));
+        }
+        finally
+        {
+            simulator.executor.shutdown();
+            simulator.handler.removeHandlers();
+        }
+    }
+
+    /**
+     * point Openfire to a temporary home without a database, like the unit tests of Openfire,
+     * so that properties are kept in memory, and enable the plugin
+     * */
+    private static void configure(boolean ingress) throws Exception
+    {
+        Path home = Files.createTempDirectory("xep398-simulator");
+        Files.createDirectories(home.resolve("conf"));
+        Files.write(home.resolve("conf").resolve("openfire.xml"),
+                "<jive><setup>true</setup><database><maxRetries>0</maxRetries><retryDelay>0</retryDelay></database></jive>".getBytes(StandardCharsets.UTF_8));
+        JiveGlobals.setHomePath(home);
+
+        XEP398Plugin.XMPP_AVATARCONVERSION_ENABLED.setValue(true);
+        XEP398Plugin.XMPP_INGRESSSTAMPING_ENABLED.setValue(ingress);
+        XEP398Plugin.XMPP_CONVERSION_COALESCEWINDOW.setValue(Duration.ZERO);
+    }
+
+    /**
+     * install a stub server that serves PEP nodes and vCards from memory and delivers routed presences to the roster
+     * */
+    private void installServer() throws Exception
+    {
+        XMPPServer server = mock(XMPPServer.class);
+
+        XMPPServerInfo info = mock(XMPPServerInfo.class);
+        when(info.getXMPPDomain()).thenReturn(DOMAIN);
+        when(server.getServerInfo()).thenReturn(info);
+
+        PEPServiceManager pepManager = mock(PEPServiceManager.class);
+        when(pepManager.getPEPService(any(JID.class))).thenAnswer(invocation -> pep(invocation.getArgument(0)));
+        when(pepManager.getPEPService(any(JID.class), anyBoolean())).thenAnswer(invocation -> pep(invocation.getArgument(0)));
+        IQPEPHandler pepHandler = mock(IQPEPHandler.class);
+        when(pepHandler.getServiceManager()).thenReturn(pepManager);
+        when(server.getIQPEPHandler()).thenReturn(pepHandler);
+
+        VCardManager vcardManager = mock(VCardManager.class);
+        when(vcardManager.getVCard(anyString())).thenAnswer(invocation -> vcards.get(invocation.getArgument(0)));
+        doAnswer(invocation -> vcards.put(invocation.getArgument(0), invocation.getArgument(1))).when(vcardManager).setVCard(anyString(), any(Element.class));
+        when(server.getVCardManager()).thenReturn(vcardManager);
+
+        UserManager userManager = mock(UserManager.class);
+        when(userManager.getUser(anyString())).thenReturn(mock(User.class));
+        when(server.getUserManager()).thenReturn(userManager);
+        PresenceManager presenceManager = mock(PresenceManager.class);
+        when(presenceManager.getPresence(any(User.class))).thenAnswer(invocation -> new Presence());
+        when(server.getPresenceManager()).thenReturn(presenceManager);
+
+        PresenceRouter presenceRouter = mock(PresenceRouter.class);
+        doAnswer(invocation -> {
+            Presence presence = invocation.getArgument(0);
+            deliver(presence);
+            CountDownLatch latch = changing.remove(presence.getFrom().toBareJID());
+            if (latch!=null)
+            {
+                latch.countDown();
+            }
+            return null;
+        }).when(presenceRouter).route(any(Presence.class));
+        when(server.getPresenceRouter()).thenReturn(presenceRouter);
+
+        when(server.getIQRouter()).thenReturn(mock(IQRouter.class));
+
+        XMPPServer.setInstance(server);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V extends Serializable> Cache<String, V> mapCache()
+    {
+        Cache<String, V> cache = mock(Cache.class, AdditionalAnswers.delegatesTo(new ConcurrentHashMap<String, V>()));
+        doReturn(0L).when(cache).getMaxLifetime();
+        return cache;
+    }
+
+    private static JID user(int i)
+    {
+        return new JID("user"+i, DOMAIN, null);
+    }
+
+    /**
+     * generate the images and give every user with an avatar one of them in PEP
+     * */
+    private void populate() throws Exception
+    {
+        avatars = new PEPAvatar[variants];
+        for (int i=0;i<variants;i++)
+        {
+            // different sizes give different noise and therefore different hashes
+            avatars[i] = new PEPAvatar(ImageCorpus.create("png", avatarSize+i*64));
+        }
+
+        Random random = new Random(1);
+        for (int i=0;i<users;i++)
+        {
+            JID jid = user(i);
+            vcards.put(jid.getNode(), DocumentHelper.createElement(QName.get("vCard", XEP398IQHandler.NAMESPACE_VCARD_TEMP)));
+            StubPEP pep = new StubPEP();
+            if (random.nextInt(100)>=withoutAvatar)
+            {
+                pep.publish(avatars[random.nextInt(variants)]);
+            }
+            peps.put(jid.toBareJID(), pep);
+        }
+        System.out.println(String.format("%d users, %d roster contacts, %d byte avatars, %d%% without avatar, %d threads, ingress stamping %s",
+                users, roster, avatarSize, withoutAvatar, threads, XEP398Plugin.XMPP_INGRESSSTAMPING_ENABLED.getValue()));
+    }
+
+    private PEPService pep(JID jid)
+    {
+        StubPEP pep = peps.get(jid.toBareJID());
+        return pep!=null?pep.service:null;
+    }
+
+    /**
+     * deliver a presence that the server routes: every roster contact gets a copy, which passes the interceptor on its way out
+     * @return the number of presences delivered
+     * */
+    private int deliver(Presence presence) throws Exception
+    {
+        int from = Integer.parseInt(presence.getFrom().getNode().substring(4));
+        for (int c=1;c<=roster;c++)
+        {
+            Presence copy = presence.createCopy();
+            copy.setTo(user((from+c)%users));
+            handler.interceptPacket(copy, null, false, true);
+        }
+        return roster;
+    }
+
+    private int login(int i) throws Exception
+    {
+        Presence available = new Presence();
+        available.setFrom(new JID("user"+i, DOMAIN, "sim"));
+        handler.interceptPacket(available, null, true, false);
+        handler.interceptPacket(available, null, true, true);
+        return 1+deliver(available);
+    }
+
+    private int change(int i) throws Exception
+    {
+        int user = (int) ((i*2654435761L)%users);
+        JID jid = new JID("user"+user, DOMAIN, "sim");
+        PEPAvatar avatar = avatars[i%variants];
+        peps.get(jid.toBareJID()).publish(avatar);
+
+        IQ publish = new IQ(IQ.Type.set);
+        publish.setFrom(jid);
+        Element item = publish.setChildElement("pubsub", XEP398IQHandler.NAMESPACE_PUBSUB)
+                .addElement("publish").addAttribute("node", XEP398IQHandler.NAMESPACE_METADATA)
+                .addElement("item").addAttribute("id", avatar.hash);
+        item.add(avatar.metadata.get(0).getPayload().createCopy());
+
+        CountDownLatch delivered = new CountDownLatch(1);
+        changing.put(jid.toBareJID(), delivered);
+        handler.interceptPacket(publish, null, true, false);
+        handler.interceptPacket(publish, null, true, true);
+        if (!delivered.await(CHANGE_TIMEOUT, TimeUnit.MILLISECONDS))
+        {
+            changing.remove(jid.toBareJID());
+            lostChanges.incrementAndGet();
+            return 1;
+        }
+        return 1+roster;
+    }
+
+    private int fetch(int i) throws Exception
+    {
+        JID jid = user((int) ((i*2654435761L)%users));
+        IQ result = new IQ(IQ.Type.result);
+        result.setFrom(jid);
+        result.setTo(new JID("user"+((i+1)%users), DOMAIN, "sim"));
+        result.setChildElement(vcards.get(jid.getNode()).createCopy());
+        handler.interceptPacket(result, null, false, false);
+        return 1;
+    }
+
+    /**
+     * The items a XEP-0084 client publishes for an image.
+     */
+    private static class PEPAvatar {
+
+        //the id of the items, the SHA-1 hash of the image
+        private final String hash;
+        private final List<PublishedItem> metadata;
+        private final List<PublishedItem> data;
+
+        private PEPAvatar(byte[] image)
+        {
+            ImageProbe.Info probe = ImageProbe.probe(image);
+            hash = AvatarIngestion.sha1Hex(image);
+
+            Element info = DocumentHelper.createElement(QName.get("metadata", XEP398IQHandler.NAMESPACE_METADATA)).addElement("info");
+            info.addAttribute("id", hash);
+            info.addAttribute("type", "image/png");
+            info.addAttribute("bytes", String.valueOf(image.length));
+            info.addAttribute("width", String.valueOf(probe.getWidth()));
+            info.addAttribute("height", String.valueOf(probe.getHeight()));
+            Element payload = DocumentHelper.createElement(QName.get("data", XEP398IQHandler.NAMESPACE_DATA));
+            payload.setText(Base64.getEncoder().encodeToString(image));
+
+            metadata = Collections.singletonList(item(hash, info.getParent()));
+            data = Collections.singletonList(item(hash, payload));
+        }
+
+        private static PublishedItem item(String id, Element payload)
+        {
+            PublishedItem item = mock(PublishedItem.class);
+            when(item.getID()).thenReturn(id);
+            when(item.getPayload()).thenReturn(payload);
+            return item;
+        }
+    }
+
+    /**
+     * The avatar nodes of one user, the items are replaced when the user publishes a new avatar.
+     */
+    private static class StubPEP {
+
+        private final PEPService service = mock(PEPService.class);
+
+        private volatile List<PublishedItem> metadata = Collections.emptyList();
+        private volatile List<PublishedItem> data = Collections.emptyList();
+
+        private StubPEP()
+        {
+            LeafNode metadataNode = node(XEP398IQHandler.NAMESPACE_METADATA, true);
+            when(metadataNode.getPublishedItems()).thenAnswer(invocation -> metadata);
+            LeafNode dataNode = node(XEP398IQHandler.NAMESPACE_DATA, false);
+            when(dataNode.getPublishedItems()).thenAnswer(invocation -> data);
+            // users without an avatar do not have the nodes
+            when(service.getNode(XEP398IQHandler.NAMESPACE_METADATA)).thenAnswer(invocation -> metadata.isEmpty()?null:metadataNode);
+            when(service.getNode(XEP398IQHandler.NAMESPACE_DATA)).thenAnswer(invocation -> data.isEmpty()?null:dataNode);
+        }
+
+        /**
+         * @return a node that is already configured like an avatar node
+         * */
+        private static LeafNode node(String nodeId, boolean deliverPayloads)
+        {
+            LeafNode node = mock(LeafNode.class);
+            when(node.getNodeID()).thenReturn(nodeId);
+            when(node.getMaxPublishedItems()).thenReturn(1);
+            when(node.isPayloadDelivered()).thenReturn(deliverPayloads);
+            when(node.isNotifiedOfRetract()).thenReturn(true);
+            return node;
+        }
+
+        /**
+         * publish an avatar like a XEP-0084 client, data first
+         * */
+        private void publish(PEPAvatar avatar)
+        {
+            data = avatar.data;
+            metadata = avatar.metadata;
+        }
+    }
+
+    private interface Operation
+    {
+        /**
+         * @return the number of stanzas handled
+         * */
+        int apply(int i) throws Exception;
+    }
+
+    /**
+     * run an operation count times on all threads and print the statistics
+     * */
+    private void run(String name, int count, Operation operation) throws Exception
+    {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+            long start = System.nanoTime();
+            for (int t=0;t<threads;t++)
+            {
+                final int first = t;
+                results.add(pool.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() throws Exception {
+                        // latencies of this thread followed by stanzas and allocated bytes
+                        int own = (count-first+threads-1)/threads;
+                        long[] samples = new long[Math.max(0, own)+2];
+                        long allocated = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                        long stanzas = 0;
+                        int n = 0;
+                        for (int i=first;i<count;i+=threads)
+                        {
+                            long begin = System.nanoTime();
+                            stanzas += operation.apply(i);
+                            samples[n++] = System.nanoTime()-begin;
+                        }
+                        samples[samples.length-2] = stanzas;
+                        samples[samples.length-1] = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId())-allocated;
+                        return samples;
+                    }
+                }));
+            }
+
+            long[] latencies = new long[0];
+            long stanzas = 0;
+            long allocated = 0;
+            for (Future<long[]> result : results)
+            {
+                long[] samples = result.get();
+                int n = samples.length-2;
+                latencies = Arrays.copyOf(latencies, latencies.length+n);
+                System.arraycopy(samples, 0, latencies, latencies.length-n, n);
+                stanzas += samples[n];
+                allocated += samples[n+1];
+            }
+            long duration = System.nanoTime()-start;
+
+            if (latencies.length==0)
+            {
+                System.out.println(name+": no operations");
+                return;
+            }
+            Arrays.sort(latencies);
+            // allocations of the conversion workers are not included
+            System.out.println(String.format("%s: %d operations, %d stanzas in %d ms, %.0f stanzas/s, p50 %.1f us, p99 %.1f us, %d bytes allocated per stanza",
+                    name, latencies.length, stanzas, duration/1000000, stanzas*1e9/duration,
+                    latencies[latencies.length/2]/1000.0, latencies[Math.min(latencies.length-1, latencies.length*99/100)]/1000.0,
+                    stanzas>0?allocated/stanzas:0));
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -40,6 +40,7 @@
     boolean avatarconversionEnabled = ParamUtils.getParameter(request,"avatarconversionEnabled")!=null&&ParamUtils.getParameter(request,"avatarconversionEnabled").equals("on")?true:false;
     boolean deleteotherEnabled = ParamUtils.getParameter(request,"deleteotherEnabled")!=null&&ParamUtils.getParameter(request,"deleteotherEnabled").equals("on")?true:false;
     boolean xep0008Enabled = ParamUtils.getParameter(request,"xep0008Enabled")!=null&&ParamUtils.getParameter(request,"xep0008Enabled").equals("on")?true:false;
+    boolean shrinkvcardimgEnabled = ParamUtils.getParameter(request,"shrinkvcardimgEnabled")!=null&&ParamUtils.getParameter(request,"shrinkvcardimgEnabled").equals("on")?true:false;
 
     Cookie csrfCookie = CookieUtils.getCookie(request, "csrf");
     String csrfParam = ParamUtils.getParameter(request, "csrf");
@@ -57,6 +58,7 @@
         XEP398Plugin.XMPP_AVATARCONVERSION_ENABLED.setValue(avatarconversionEnabled);
         XEP398Plugin.XMPP_DELETEOTHERAVATAR_ENABLED.setValue(deleteotherEnabled);
         XEP398Plugin.XMPP_XEP0008_ENABLED.setValue(xep0008Enabled);
+        XEP398Plugin.XMPP_SHRINKVCARDIMG_ENABLED.setValue(shrinkvcardimgEnabled);
         // Log the event
         webManager.logEvent((avatarconversionEnabled ? "enabled" : "disabled")+" avatarconversion", null);
     %>
@@ -78,6 +80,7 @@
     avatarconversionEnabled = XEP398Plugin.XMPP_AVATARCONVERSION_ENABLED.getValue();
     deleteotherEnabled = XEP398Plugin.XMPP_DELETEOTHERAVATAR_ENABLED.getValue();
     xep0008Enabled = XEP398Plugin.XMPP_XEP0008_ENABLED.getValue();
+    shrinkvcardimgEnabled = XEP398Plugin.XMPP_SHRINKVCARDIMG_ENABLED.getValue();
 
 %>
 
@@ -123,6 +126,17 @@
                     </label>
                 </td>
             </tr>
+            <tr valign="top">
+                <td width="1%" nowrap>
+                    <input type="checkbox" name="shrinkvcardimgEnabled" id="shrinkvcardimgEnabled"  <%=(shrinkvcardimgEnabled?"checked" : "")%>>
+                </td>
+                <td width="99%">
+                    <label for="shrinkvcardimgEnabled">
+                     <b><fmt:message key="avatarconversion.settings.shrinkvcardimg" /></b> -
+                     <fmt:message key="avatarconversion.settings.shrinkvcardimg_info" />
+                    </label>
+                </td>
+            </tr>
         </tbody>
         </table>
     </div>
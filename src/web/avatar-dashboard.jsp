@@ -0,0 +1,270 @@
+<%@ page contentType="text/html; charset=UTF-8" %>
+<%--
+  -
+  - Copyright (C) 2004-2008 Jive Software. All rights reserved.
+  -
+  - Licensed under the Apache License, Version 2.0 (the "License");
+  - you may not use this file except in compliance with the License.
+  - You may obtain a copy of the License at
+  -
+  -     http://www.apache.org/licenses/LICENSE-2.0
+  -
+  - Unless required by applicable law or agreed to in writing, software
+  - distributed under the License is distributed on an "AS IS" BASIS,
+  - WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  - See the License for the specific language governing permissions and
+  - limitations under the License.
+--%>
+
+<%@ page import="java.util.*,
+                 org.jivesoftware.util.*,
+                 org.jivesoftware.openfire.*,
+                 org.jivesoftware.openfire.group.*,
+                 org.xmpp.packet.JID,
+                 org.igniterealtime.openfire.plugin.xep398.*"
+    errorPage="error.jsp"
+%>
+
+<%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c" %>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %>
+<jsp:useBean id="webManager" class="org.jivesoftware.util.WebManager"  />
+<% webManager.init(request, response, session, application, out ); %>
+
+<%  // Get parameters:
+    boolean purge = request.getParameter("purge") != null;
+    boolean warmUser = request.getParameter("warmUser") != null;
+    boolean warmGroup = request.getParameter("warmGroup") != null;
+    boolean reconvert = request.getParameter("reconvert") != null;
+    String username = ParamUtils.getParameter(request, "username");
+    String groupname = ParamUtils.getParameter(request, "groupname");
+
+    Cookie csrfCookie = CookieUtils.getCookie(request, "csrf");
+    String csrfParam = ParamUtils.getParameter(request, "csrf");
+
+    if (purge || warmUser || warmGroup || reconvert) {
+        if (csrfCookie == null || csrfParam == null || !csrfCookie.getValue().equals(csrfParam)) {
+            purge = warmUser = warmGroup = reconvert = false;
+        }
+    }
+    csrfParam = StringUtils.randomString(15);
+    CookieUtils.setCookie(request, response, "csrf", csrfParam, -1);
+    pageContext.setAttribute("csrf", csrfParam);
+
+    XEP398Plugin plugin = (XEP398Plugin) XMPPServer.getInstance().getPluginManager().getPluginByName("XEP-0398").orElse(null);
+    String message = null;
+    String error = null;
+
+    if (plugin!=null) {
+        if (purge) {
+            plugin.purgeCaches();
+            webManager.logEvent("purged avatar caches", null);
+            message = "avatardashboard.purged";
+        }
+        else if ((warmUser || reconvert) && username != null) {
+            JID user = null;
+            try {
+                user = username.contains("@") ? new JID(username.trim()).asBareJID() : XMPPServer.getInstance().createJID(username.trim(), null);
+            }
+            catch (IllegalArgumentException e) {
+                error = "avatardashboard.invaliduser";
+            }
+            if (user == null || user.getNode() == null) {
+                error = "avatardashboard.invaliduser";
+            }
+            else if (warmUser) {
+                plugin.warmUp(user);
+                message = "avatardashboard.warming";
+            }
+            else {
+                plugin.reconvert(user);
+                webManager.logEvent("reconverted avatar of "+user.toBareJID(), null);
+                message = "avatardashboard.reconverting";
+            }
+        }
+        else if (warmGroup && groupname != null) {
+            try {
+                Group group = GroupManager.getInstance().getGroup(groupname);
+                plugin.warmUp(group.getMembers());
+                message = "avatardashboard.warming";
+            }
+            catch (GroupNotFoundException e) {
+                error = "avatardashboard.groupnotfound";
+            }
+        }
+    }
+
+    // operations per second since the last view of the page
+    AvatarMetrics metrics = AvatarMetrics.getInstance();
+    List<AvatarMetrics.OperationStatistics> operations = metrics.getOperations();
+    long now = System.currentTimeMillis();
+    long[] previous = (long[]) session.getAttribute("xep398.dashboard.snapshot");
+    long[] snapshot = new long[operations.size()+1];
+    snapshot[0] = now;
+    for (int i=0; i<operations.size(); i++) {
+        snapshot[i+1] = operations.get(i).getCount();
+    }
+    session.setAttribute("xep398.dashboard.snapshot", snapshot);
+    boolean hasRate = previous != null && previous.length == snapshot.length && now > previous[0];
+
+    long hits = metrics.getCount(AvatarMetrics.Counter.CACHE_HIT);
+    long misses = metrics.getCount(AvatarMetrics.Counter.CACHE_MISS);
+    long blobHits = metrics.getBlobStoreHits();
+    long blobMisses = metrics.getBlobStoreMisses();
+    long localHits = metrics.getLocalCacheHits();
+    long localMisses = metrics.getLocalCacheMisses();
+    long fragmentHits = metrics.getFragmentCacheHits();
+    long fragmentMisses = metrics.getFragmentCacheMisses();
+%>
+
+<html>
+<head>
+<title><fmt:message key="avatardashboard.title"/></title>
+<meta name="pageID" content="server-avatar-dashboard"/>
+</head>
+<body>
+
+<p><fmt:message key="avatardashboard.info" /></p>
+
+<% if (plugin==null) { %>
+    <div class="jive-error"><fmt:message key="avatarmigration.unavailable" /></div>
+<% } else { %>
+
+<% if (message!=null) { %>
+    <div class="jive-success">
+    <table cellpadding="0" cellspacing="0" border="0">
+    <tbody>
+        <tr><td class="jive-icon"><img src="images/success-16x16.gif" width="16" height="16" border="0" alt=""></td>
+        <td class="jive-icon-label"><fmt:message key="<%= message %>" /></td></tr>
+    </tbody>
+    </table>
+    </div><br>
+<% } else if (error!=null) { %>
+    <div class="jive-error"><fmt:message key="<%= error %>" /></div><br>
+<% } %>
+
+<div class="jive-contentBoxHeader">
+    <fmt:message key="avatardashboard.caches" />
+</div>
+<div class="jive-contentBox">
+    <table cellpadding="3" cellspacing="0" border="0">
+    <tbody>
+        <tr><td width="1%" nowrap><fmt:message key="avatardashboard.hitratio" /></td>
+            <td><%= hits+misses>0 ? String.format("%.1f %%", hits*100.0/(hits+misses)) : "-" %> (<%= hits %> / <%= misses %>)</td></tr>
+        <tr><td width="1%" nowrap><fmt:message key="avatardashboard.blobstore" /></td>
+            <td><%= metrics.getBlobStoreSize() %> / <%= plugin.getBlobStore().getMaxSize() %> <fmt:message key="avatardashboard.bytes" />,
+                <%= plugin.getBlobStore().getBlobCount() %> <fmt:message key="avatardashboard.images" />,
+                <fmt:message key="avatardashboard.hitratio" /> <%= blobHits+blobMisses>0 ? String.format("%.1f %%", blobHits*100.0/(blobHits+blobMisses)) : "-" %>,
+                <fmt:message key="avatardashboard.evictions" /> <%= metrics.getBlobStoreEvictions() %></td></tr>
+        <tr><td width="1%" nowrap><fmt:message key="avatardashboard.localcache" /></td>
+            <td><%= metrics.getLocalCacheSize() %> / <%= plugin.getAvatarCache().getLocal().getMaxSize() %> <fmt:message key="avatardashboard.bytes" />,
+                <%= plugin.getAvatarCache().getLocal().getEntryCount() %> <fmt:message key="avatardashboard.entries" />,
+                <fmt:message key="avatardashboard.hitratio" /> <%= localHits+localMisses>0 ? String.format("%.1f %%", localHits*100.0/(localHits+localMisses)) : "-" %>,
+                <fmt:message key="avatardashboard.evictions" /> <%= metrics.getLocalCacheEvictions() %></td></tr>
+        <tr><td width="1%" nowrap><fmt:message key="avatardashboard.fragmentcache" /></td>
+            <td><%= metrics.getFragmentCacheSize() %> / <%= plugin.getFragmentCache().getMaxSize() %> <fmt:message key="avatardashboard.bytes" />,
+                <%= plugin.getFragmentCache().getEntryCount() %> <fmt:message key="avatardashboard.entries" />,
+                <fmt:message key="avatardashboard.hitratio" /> <%= fragmentHits+fragmentMisses>0 ? String.format("%.1f %%", fragmentHits*100.0/(fragmentHits+fragmentMisses)) : "-" %>,
+                <fmt:message key="avatardashboard.evictions" /> <%= plugin.getFragmentCache().getEvictions() %></td></tr>
+        <tr><td width="1%" nowrap><fmt:message key="avatardashboard.hashindex" /></td>
+            <td><%= metrics.getHashIndexSize() %> <fmt:message key="avatardashboard.entries" /></td></tr>
+        <tr><td width="1%" nowrap><fmt:message key="avatardashboard.negativecache" /></td>
+            <td><%= plugin.getNegativeCache().size() %> <fmt:message key="avatardashboard.entries" />, <%= metrics.getNegativeCacheSavedLookups() %> <fmt:message key="avatardashboard.savedlookups" /></td></tr>
+        <tr><td width="1%" nowrap><fmt:message key="avatardashboard.queue" /></td>
+            <td><%= metrics.getConversionQueueDepth() %>, <fmt:message key="avatardashboard.rejected" /> <%= metrics.getConversionsRejected() %>,
+                <fmt:message key="avatardashboard.coalesced" /> <%= metrics.getConversionsCoalesced() %></td></tr>
+    </tbody>
+    </table>
+</div>
+
+<div class="jive-table">
+<table cellpadding="0" cellspacing="0" border="0" width="100%">
+<thead>
+    <tr>
+        <th nowrap><fmt:message key="avatardashboard.operation" /></th>
+        <th nowrap><fmt:message key="avatardashboard.count" /></th>
+        <th nowrap><fmt:message key="avatardashboard.rate" /></th>
+        <th nowrap><fmt:message key="avatardashboard.mean" /></th>
+        <th nowrap>p50</th>
+        <th nowrap>p99</th>
+        <th nowrap><fmt:message key="avatardashboard.max" /></th>
+    </tr>
+</thead>
+<tbody>
+<%  for (int i=0; i<operations.size(); i++) {
+        AvatarMetrics.OperationStatistics operation = operations.get(i);
+        if (operation.getCount()==0) {
+            continue;
+        }
+%>
+    <tr class="<%= (i%2==0 ? "jive-even" : "jive-odd") %>">
+        <td><%= operation.getName() %></td>
+        <td><%= operation.getCount() %></td>
+        <td><%= hasRate ? String.format("%.1f", (snapshot[i+1]-previous[i+1])*1000.0/(now-previous[0])) : "-" %></td>
+        <td><%= String.format("%.0f µs", operation.getMean()) %></td>
+        <td><%= String.format("%.0f µs", operation.getP50()) %></td>
+        <td><%= String.format("%.0f µs", operation.getP99()) %></td>
+        <td><%= String.format("%.0f µs", operation.getMax()) %></td>
+    </tr>
+<%  } %>
+</tbody>
+</table>
+</div>
+<br>
+
+<div class="jive-table">
+<table cellpadding="0" cellspacing="0" border="0" width="100%">
+<thead>
+    <tr>
+        <th nowrap><fmt:message key="avatardashboard.largest" /></th>
+        <th nowrap><fmt:message key="avatardashboard.size" /></th>
+        <th nowrap><fmt:message key="avatardashboard.users" /></th>
+        <th nowrap><fmt:message key="avatardashboard.user" /></th>
+    </tr>
+</thead>
+<tbody>
+<%  int row = 0;
+    for (AvatarBlobStore.Usage usage : plugin.getBlobStore().getLargest(10)) { %>
+    <tr class="<%= (row++%2==0 ? "jive-even" : "jive-odd") %>">
+        <td><tt><%= usage.getHash() %></tt></td>
+        <td><%= usage.getSize() %></td>
+        <td><%= usage.getReferences() %></td>
+        <td><%= usage.getUser()!=null ? StringUtils.escapeHTMLTags(usage.getUser()) : "-" %></td>
+    </tr>
+<%  } %>
+</tbody>
+</table>
+</div>
+<br>
+
+<div class="jive-contentBoxHeader">
+    <fmt:message key="avatardashboard.actions" />
+</div>
+<div class="jive-contentBox">
+    <form action="avatar-dashboard.jsp" method="post">
+        <input type="hidden" name="csrf" value="${csrf}">
+        <table cellpadding="3" cellspacing="0" border="0">
+        <tbody>
+            <tr>
+                <td width="1%" nowrap><label for="username"><fmt:message key="avatardashboard.username" /></label></td>
+                <td><input type="text" name="username" id="username" size="30">
+                    <input type="submit" name="warmUser" value="<fmt:message key="avatardashboard.warm" />">
+                    <input type="submit" name="reconvert" value="<fmt:message key="avatardashboard.reconvert" />"></td>
+            </tr>
+            <tr>
+                <td width="1%" nowrap><label for="groupname"><fmt:message key="avatardashboard.groupname" /></label></td>
+                <td><input type="text" name="groupname" id="groupname" size="30">
+                    <input type="submit" name="warmGroup" value="<fmt:message key="avatardashboard.warm" />"></td>
+            </tr>
+            <tr>
+                <td width="1%" nowrap></td>
+                <td><input type="submit" name="purge" value="<fmt:message key="avatardashboard.purge" />">
+                    <fmt:message key="avatardashboard.purge_info" /></td>
+            </tr>
+        </tbody>
+        </table>
+    </form>
+</div>
+<% } %>
+
+</body>
+</html>
@@ -0,0 +1,113 @@
+<%@ page contentType="text/html; charset=UTF-8" %>
+<%--
+  -
+  - Copyright (C) 2004-2008 Jive Software. All rights reserved.
+  -
+  - Licensed under the Apache License, Version 2.0 (the "License");
+  - you may not use this file except in compliance with the License.
+  - You may obtain a copy of the License at
+  -
+  -     http://www.apache.org/licenses/LICENSE-2.0
+  -
+  - Unless required by applicable law or agreed to in writing, software
+  - distributed under the License is distributed on an "AS IS" BASIS,
+  - WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  - See the License for the specific language governing permissions and
+  - limitations under the License.
+--%>
+
+<%@ page import="org.jivesoftware.util.*,
+                 org.jivesoftware.openfire.*,
+                 org.igniterealtime.openfire.plugin.xep398.XEP398Plugin,
+                 org.igniterealtime.openfire.plugin.xep398.AvatarMigrationJob"
+    errorPage="error.jsp"
+%>
+
+<%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c" %>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %>
+<jsp:useBean id="webManager" class="org.jivesoftware.util.WebManager"  />
+<% webManager.init(request, response, session, application, out ); %>
+
+<%  // Get parameters:
+    boolean start = request.getParameter("start") != null;
+    boolean pause = request.getParameter("pause") != null;
+    boolean reset = request.getParameter("reset") != null;
+
+    Cookie csrfCookie = CookieUtils.getCookie(request, "csrf");
+    String csrfParam = ParamUtils.getParameter(request, "csrf");
+
+    if (start || pause || reset) {
+        if (csrfCookie == null || csrfParam == null || !csrfCookie.getValue().equals(csrfParam)) {
+            start = pause = reset = false;
+        }
+    }
+    csrfParam = StringUtils.randomString(15);
+    CookieUtils.setCookie(request, response, "csrf", csrfParam, -1);
+    pageContext.setAttribute("csrf", csrfParam);
+
+    XEP398Plugin plugin = (XEP398Plugin) XMPPServer.getInstance().getPluginManager().getPluginByName("XEP-0398").orElse(null);
+    AvatarMigrationJob job = plugin!=null ? plugin.getMigrationJob() : null;
+
+    if (job!=null) {
+        if (start) {
+            job.start();
+            webManager.logEvent("started avatar migration", null);
+        }
+        else if (pause) {
+            job.pause();
+            webManager.logEvent("paused avatar migration", null);
+        }
+        else if (reset) {
+            job.reset();
+            webManager.logEvent("reset avatar migration", null);
+        }
+    }
+%>
+
+<html>
+<head>
+<title><fmt:message key="avatarmigration.title"/></title>
+<meta name="pageID" content="server-avatar-migration"/>
+<% if (job!=null && job.getState()==AvatarMigrationJob.State.RUNNING) { %>
+<meta http-equiv="refresh" content="10;URL=avatar-migration.jsp">
+<% } %>
+</head>
+<body>
+
+<p><fmt:message key="avatarmigration.info" /></p>
+
+<% if (job==null) { %>
+    <div class="jive-error"><fmt:message key="avatarmigration.unavailable" /></div>
+<% } else { %>
+<div class="jive-contentBoxHeader">
+    <fmt:message key="avatarmigration.status" />
+</div>
+<div class="jive-contentBox">
+    <table cellpadding="3" cellspacing="0" border="0">
+    <tbody>
+        <tr><td width="1%" nowrap><fmt:message key="avatarmigration.state" /></td><td><%= job.getState() %></td></tr>
+        <tr><td width="1%" nowrap><fmt:message key="avatarmigration.processed" /></td><td><%= job.getProcessed() %><%= job.getTotal()>0 ? " / "+job.getTotal() : "" %></td></tr>
+        <tr><td width="1%" nowrap><fmt:message key="avatarmigration.converted" /></td><td><%= job.getConverted() %></td></tr>
+        <tr><td width="1%" nowrap><fmt:message key="avatarmigration.skipped" /></td><td><%= job.getSkipped() %></td></tr>
+        <tr><td width="1%" nowrap><fmt:message key="avatarmigration.failed" /></td><td><%= job.getFailed() %></td></tr>
+        <tr><td width="1%" nowrap><fmt:message key="avatarmigration.checkpoint" /></td><td><%= job.getCheckpoint()!=null ? StringUtils.escapeHTMLTags(job.getCheckpoint()) : "-" %></td></tr>
+    </tbody>
+    </table>
+</div>
+
+<form action="avatar-migration.jsp" method="post">
+    <input type="hidden" name="csrf" value="${csrf}">
+    <% if (job.getState()==AvatarMigrationJob.State.RUNNING) { %>
+    <input type="submit" name="pause" value="<fmt:message key="avatarmigration.pause" />">
+    <% } else if (job.getState()==AvatarMigrationJob.State.PAUSED) { %>
+    <input type="submit" name="start" value="<fmt:message key="avatarmigration.resume" />">
+    <input type="submit" name="reset" value="<fmt:message key="avatarmigration.reset" />">
+    <% } else { %>
+    <input type="submit" name="start" value="<fmt:message key="avatarmigration.start" />">
+    <input type="submit" name="reset" value="<fmt:message key="avatarmigration.reset" />">
+    <% } %>
+</form>
+<% } %>
+
+</body>
+</html>